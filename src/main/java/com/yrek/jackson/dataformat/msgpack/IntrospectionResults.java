@@ -1,81 +1,142 @@
 package com.yrek.jackson.dataformat.msgpack;
 
 import java.lang.reflect.Field;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.fasterxml.jackson.core.SerializableString;
 import com.fasterxml.jackson.databind.BeanDescription;
 import com.fasterxml.jackson.databind.DeserializationConfig;
 import com.fasterxml.jackson.databind.SerializationConfig;
 import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.introspect.AnnotatedMember;
 import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.type.ClassKey;
 import com.fasterxml.jackson.databind.type.TypeBindings;
 
 import com.yrek.jackson.dataformat.protobuf.Protobuf;
 
+/**
+ * Per-type annotation introspection results, shared by all the
+ * parsers or generators created by a mapper.  Results for a type are
+ * computed once and never modified afterwards, so lookups need no
+ * locking.  The cache is cleared when it fills up, to bound the
+ * memory held for dynamically constructed types.
+ */
 class IntrospectionResults {
-    private DeserializationConfig _deserializationConfig;
-    private HashMap<JavaType,HashMap<Integer,String>> _names;
-    private HashMap<JavaType,HashMap<String,JavaType>> _types;
+    private static final int MAX_CACHED_TYPES = 1000;
+    private static final int MAX_ENCODED_NAMES = 256;
+    private static final int MAX_TUPLE_GAPS = 16;
+
+    private final DeserializationConfig _deserializationConfig;
+    private final SerializationConfig _serializationConfig;
+    private final int _mixInCount;
+    private final ConcurrentHashMap<JavaType,TypeInfo> _typeInfos = new ConcurrentHashMap<JavaType,TypeInfo>();
+
+    /**
+     * Resolved properties of a type.  Integer keys index a
+     * {@link KeyTable}, so that resolving a key read by the parser
+     * does not box it.
+     */
+    static final class TypeInfo {
+        private KeyTable<String> _names;
+        private HashMap<String,JavaType> _types;
+        private HashMap<String,Integer> _keys;
+        private JavaType[] _tupleTypes;
+        private volatile IdentityHashMap<SerializableString,byte[]> _encodedNames = new IdentityHashMap<SerializableString,byte[]>();
+        private volatile IdentityHashMap<SerializableString,byte[]> _encodedNamesBinAndStr8 = new IdentityHashMap<SerializableString,byte[]>();
+
+        String getName(long key) {
+            return _names.get(key);
+        }
 
-    private SerializationConfig _serializationConfig;
-    private HashMap<JavaType,HashMap<String,Integer>> _keys;
+        JavaType getType(String name) {
+            return _types.get(name);
+        }
 
-    private HashMap<JavaType,HashMap<String,Integer>> _enumInt;
-    private HashMap<JavaType,HashMap<Integer,String>> _enumString;
+        Integer getKey(String name) {
+            return _keys.get(name);
+        }
 
-    IntrospectionResults(DeserializationConfig deserializationConfig) {
-        _deserializationConfig = deserializationConfig;
-        _names = new HashMap<JavaType,HashMap<Integer,String>>();
-        _types = new HashMap<JavaType,HashMap<String,JavaType>>();
-        _enumInt = new HashMap<JavaType,HashMap<String,Integer>>();
-        _enumString = new HashMap<JavaType,HashMap<Integer,String>>();
+        // The type of an element of a tuple, or null.
+        JavaType getTupleType(int index) {
+            return _tupleTypes != null && index < _tupleTypes.length ? _tupleTypes[index] : null;
+        }
     }
 
-    IntrospectionResults(SerializationConfig serializationConfig) {
+    IntrospectionResults(DeserializationConfig deserializationConfig, Map<ClassKey,Class<?>> mixIns) {
+        this(deserializationConfig, null, mixIns);
+    }
+
+    IntrospectionResults(SerializationConfig serializationConfig, Map<ClassKey,Class<?>> mixIns) {
+        this(null, serializationConfig, mixIns);
+    }
+
+    private IntrospectionResults(DeserializationConfig deserializationConfig, SerializationConfig serializationConfig, Map<ClassKey,Class<?>> mixIns) {
+        _deserializationConfig = deserializationConfig;
         _serializationConfig = serializationConfig;
-        _keys = new HashMap<JavaType,HashMap<String,Integer>>();
-        _enumInt = new HashMap<JavaType,HashMap<String,Integer>>();
-        _enumString = new HashMap<JavaType,HashMap<Integer,String>>();
+        _mixInCount = mixIns.size();
     }
 
-    private void introspectForDeserialization(JavaType javaType) {
+    /**
+     * Whether these results still apply, which is the case while the
+     * mapper's configuration is unchanged and no mix-in annotations
+     * have been added.  Only the number of mix-ins is compared, as
+     * Jackson itself expects mix-ins to be set up before first use.
+     */
+    boolean isCurrent(Object config, Map<ClassKey,Class<?>> mixIns) {
+        return (config == _deserializationConfig || config == _serializationConfig) && _mixInCount == mixIns.size();
+    }
+
+    TypeInfo getTypeInfo(JavaType javaType) {
+        TypeInfo typeInfo = _typeInfos.get(javaType);
+        if (typeInfo == null) {
+            typeInfo = new TypeInfo();
+            if (_deserializationConfig != null)
+                introspectForDeserialization(javaType, typeInfo);
+            else
+                introspectForSerialization(javaType, typeInfo);
+            if (_typeInfos.size() >= MAX_CACHED_TYPES)
+                _typeInfos.clear();
+            TypeInfo existing = _typeInfos.putIfAbsent(javaType, typeInfo);
+            if (existing != null)
+                typeInfo = existing;
+        }
+        return typeInfo;
+    }
+
+    private void introspectForDeserialization(JavaType javaType, TypeInfo typeInfo) {
         HashMap<Integer,String> names = new HashMap<Integer,String>();
-        _names.put(javaType, names);
         HashMap<String,JavaType> types = new HashMap<String,JavaType>();
-        _types.put(javaType, types);
+        typeInfo._types = types;
         BeanDescription beanDescription = _deserializationConfig.introspect(javaType);
         for (BeanPropertyDefinition bpd : beanDescription.findProperties())
             if (bpd.couldDeserialize()) {
                 types.put(bpd.getName(), bpd.getMutator().getType(new TypeBindings(_deserializationConfig.getTypeFactory(), javaType)));
-                if (bpd.getMutator().hasAnnotation(MessagePack.class)) {
-                    names.put(bpd.getMutator().getAnnotation(MessagePack.class).value(), bpd.getName());
-                } else if (bpd.getMutator().hasAnnotation(Protobuf.class)) {
-                    names.put(bpd.getMutator().getAnnotation(Protobuf.class).value(), bpd.getName());
-                }
+                Integer key = findKey(bpd.getMutator());
+                if (key != null)
+                    names.put(key, bpd.getName());
             }
-    }
-
-    public String getName(JavaType javaType, int key) {
-        HashMap<Integer,String> names = _names.get(javaType);
-        if (names == null) {
-            introspectForDeserialization(javaType);
-            names = _names.get(javaType);
-        }
-        return names.get(key);
-    }
-
-    public JavaType getType(JavaType javaType, String name) {
-        HashMap<String,JavaType> types = _types.get(javaType);
-        if (types == null) {
-            introspectForDeserialization(javaType);
-            types = _types.get(javaType);
+        typeInfo._names = new KeyTable<String>(names);
+        if (beanDescription.getClassAnnotations().get(MessagePackTuple.class) != null) {
+            int length = 0;
+            for (Integer key : names.keySet())
+                if (key >= 0)
+                    length = Math.max(length, key + 1);
+            typeInfo._tupleTypes = new JavaType[length];
+            for (Map.Entry<Integer,String> entry : names.entrySet())
+                if (entry.getKey() >= 0)
+                    typeInfo._tupleTypes[entry.getKey()] = types.get(entry.getValue());
         }
-        return types.get(name);
     }
 
-    private void introspectForSerialization(JavaType javaType) {
+    private void introspectForSerialization(JavaType javaType, TypeInfo typeInfo) {
         HashMap<String,Integer> keys = new HashMap<String,Integer>();
-        _keys.put(javaType, keys);
+        typeInfo._keys = keys;
         BeanDescription beanDescription = _serializationConfig.introspect(javaType);
         for (BeanPropertyDefinition bpd : beanDescription.findProperties())
             if (bpd.couldSerialize() && bpd.getAccessor().hasAnnotation(MessagePack.class))
@@ -85,62 +146,94 @@ class IntrospectionResults {
     }
 
     public Integer getKey(JavaType javaType, String name) {
-        HashMap<String,Integer> keys = _keys.get(javaType);
-        if (keys == null) {
-            introspectForSerialization(javaType);
-            keys = _keys.get(javaType);
-        }
-        return keys.get(name);
+        return getTypeInfo(javaType).getKey(name);
+    }
+
+    /**
+     * Cache of complete field name encodings for a type, filled in by
+     * the generator.  Keyed by identity, since serializers reuse the
+     * same SerializableString for a property.  Names of 32 to 255
+     * bytes are encoded differently when str8 is used, so those
+     * encodings are kept separately.  The returned map must not be
+     * modified; use {@link #addEncodedName}.
+     */
+    public Map<SerializableString,byte[]> getEncodedNames(JavaType javaType, boolean binAndStr8) {
+        TypeInfo typeInfo = getTypeInfo(javaType);
+        return binAndStr8 ? typeInfo._encodedNamesBinAndStr8 : typeInfo._encodedNames;
     }
 
-    private void introspectEnums(JavaType javaType) {
-        assert javaType.isEnumType();
-        HashMap<String,Integer> enumInt = new HashMap<String,Integer>();
-        _enumInt.put(javaType, enumInt);
-        HashMap<Integer,String> enumString = new HashMap<Integer,String>();
-        _enumString.put(javaType, enumString);
+    /**
+     * Add a field name encoding, returning the updated cache.  The
+     * cache is copied on write, so generators in other threads can
+     * keep reading the old one.  An encoding lost to a concurrent
+     * update is just recomputed later.
+     */
+    public Map<SerializableString,byte[]> addEncodedName(JavaType javaType, boolean binAndStr8, SerializableString name, byte[] encodedName) {
+        TypeInfo typeInfo = getTypeInfo(javaType);
+        IdentityHashMap<SerializableString,byte[]> encodedNames = binAndStr8 ? typeInfo._encodedNamesBinAndStr8 : typeInfo._encodedNames;
+        if (encodedNames.size() >= MAX_ENCODED_NAMES)
+            return encodedNames;
+        encodedNames = new IdentityHashMap<SerializableString,byte[]>(encodedNames);
+        encodedNames.put(name, encodedName);
+        if (binAndStr8)
+            typeInfo._encodedNamesBinAndStr8 = encodedNames;
+        else
+            typeInfo._encodedNames = encodedNames;
+        return encodedNames;
+    }
+
+    /**
+     * The key of a property given by its annotation, if any.
+     */
+    static Integer findKey(AnnotatedMember member) {
+        if (member.hasAnnotation(MessagePack.class))
+            return member.getAnnotation(MessagePack.class).value();
+        if (member.hasAnnotation(Protobuf.class))
+            return member.getAnnotation(Protobuf.class).value();
+        return null;
+    }
 
+    /**
+     * Check the keys of the properties of a {@link MessagePackTuple}
+     * class, which are their positions in the array.  Every property
+     * needs a non-negative key, and the array may have at most one
+     * nil gap per property, plus MAX_TUPLE_GAPS.
+     */
+    static void checkTupleKeys(Class<?> cls, Map<String,Integer> keys) throws JsonMappingException {
+        int length = 0;
+        for (Map.Entry<String,Integer> entry : keys.entrySet()) {
+            Integer key = entry.getValue();
+            if (key == null || key < 0)
+                throw new JsonMappingException("Tuple property "+entry.getKey()+" of "+cls.getName()+" needs a non-negative key");
+            length = Math.max(length, key + 1);
+        }
+        if (length > 2*keys.size() + MAX_TUPLE_GAPS)
+            throw new JsonMappingException("Tuple keys of "+cls.getName()+" too sparse: "+length+" elements for "+keys.size()+" properties");
+    }
+
+    /**
+     * Keys of the constants of an enum that are annotated with keys.
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends Enum<T>> EnumMap<T,Integer> getEnumKeys(Class<?> cls) {
+        // constants with bodies are subclasses of the enum
+        Class<T> enumClass = (Class<T>) (cls.isEnum() ? cls : cls.getSuperclass());
+        EnumMap<T,Integer> enumKeys = new EnumMap<T,Integer>(enumClass);
         // can't have mixin annotations - are they available for enum values anyhow?
-        Class<?> rawClass = javaType.getRawClass();
-        for (Object value : rawClass.getEnumConstants()) {
+        for (T value : enumClass.getEnumConstants()) {
             try {
-                String name = ((Enum) value).name();
-                MessagePack annotation = rawClass.getField(name).getAnnotation(MessagePack.class);
+                Field field = enumClass.getField(value.name());
+                MessagePack annotation = field.getAnnotation(MessagePack.class);
                 if (annotation != null) {
-                    enumInt.put(name, annotation.value());
-                    enumString.put(annotation.value(), name);
-                    continue;
-                }
-                Protobuf protobuf = rawClass.getField(name).getAnnotation(Protobuf.class);
-                if (protobuf != null) {
-                    enumInt.put(name, protobuf.value());
-                    enumString.put(protobuf.value(), name);
+                    enumKeys.put(value, annotation.value());
                     continue;
                 }
+                Protobuf protobuf = field.getAnnotation(Protobuf.class);
+                if (protobuf != null)
+                    enumKeys.put(value, protobuf.value());
             } catch (Exception e) {
             }
         }
-    }
-
-    public Integer getEnum(JavaType javaType, String name) {
-        if (!javaType.isEnumType())
-            return null;
-        HashMap<String,Integer> enumInt = _enumInt.get(javaType);
-        if (enumInt == null) {
-            introspectEnums(javaType);
-            enumInt = _enumInt.get(javaType);
-        }
-        return enumInt.get(name);
-    }
-
-    public String getEnum(JavaType javaType, int value) {
-        if (!javaType.isEnumType())
-            return null;
-        HashMap<Integer,String> enumString = _enumString.get(javaType);
-        if (enumString == null) {
-            introspectEnums(javaType);
-            enumString = _enumString.get(javaType);
-        }
-        return enumString.get(value);
+        return enumKeys;
     }
 }
@@ -0,0 +1,51 @@
+package com.yrek.jackson.dataformat.msgpack;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lookup table from integer keys to values.  Keys are dense enough
+ * in practice to index an array from the smallest key.  Otherwise,
+ * they are kept in a map.
+ */
+final class KeyTable<T> {
+    private static final int MAX_TABLE_SIZE = 1024;
+
+    private final int _minKey;
+    private final Object[] _table;
+    private final HashMap<Integer,T> _map;
+
+    KeyTable(Map<Integer,T> values) {
+        long minKey = 0;
+        long maxKey = -1;
+        for (Integer key : values.keySet()) {
+            if (maxKey < minKey) {
+                minKey = key;
+                maxKey = key;
+            }
+            minKey = Math.min(minKey, key);
+            maxKey = Math.max(maxKey, key);
+        }
+        _minKey = (int) minKey;
+        if (maxKey - minKey < MAX_TABLE_SIZE) {
+            _table = new Object[(int) (maxKey - minKey + 1)];
+            for (Map.Entry<Integer,T> entry : values.entrySet())
+                _table[entry.getKey() - _minKey] = entry.getValue();
+            _map = null;
+        } else {
+            _table = null;
+            _map = new HashMap<Integer,T>(values);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(long key) {
+        if (_table != null) {
+            if (key >= _minKey && key - _minKey < _table.length)
+                return (T) _table[(int) (key - _minKey)];
+        } else if (key >= Integer.MIN_VALUE && key <= Integer.MAX_VALUE) {
+            return _map.get((int) key);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,30 @@
+package com.yrek.jackson.dataformat.msgpack;
+
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Name of a keyed property, carrying the MessagePack encoding of the
+ * key so that the generator can write it without any lookups.
+ * Other generators just see the name.
+ */
+final class KeyedName extends SerializedString {
+    private static final long serialVersionUID = 0L;
+
+    private final byte[] _encodedKey;
+
+    KeyedName(String name, int key) {
+        super(name);
+        _encodedKey = encodeKey(key);
+    }
+
+    byte[] getEncodedKey() {
+        return _encodedKey;
+    }
+
+    private static byte[] encodeKey(int key) {
+        byte[] buffer = new byte[9];
+        return Arrays.copyOf(buffer, MessagePackGenerator.encodeInteger(key, buffer, 0));
+    }
+}
@@ -0,0 +1,161 @@
+package com.yrek.jackson.dataformat.msgpack;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.deser.BeanDeserializer;
+import com.fasterxml.jackson.databind.deser.BeanDeserializerBase;
+import com.fasterxml.jackson.databind.deser.SettableBeanProperty;
+import com.fasterxml.jackson.databind.deser.impl.ObjectIdReader;
+
+/**
+ * Bean deserializer for beans with keyed properties.  When reading
+ * from a MessagePack parser, properties written with integer keys
+ * are looked up by key in a table rather than by name, and classes
+ * marked with {@link MessagePackTuple} are read from arrays.  Anything
+ * other than plain default construction and property setting is
+ * left to {@link BeanDeserializer}.
+ */
+class MessagePackBeanDeserializer extends BeanDeserializer {
+    private static final long serialVersionUID = 0L;
+
+    private final HashMap<Integer,String> _names;
+    private final boolean _tuple;
+    private KeyTable<SettableBeanProperty> _properties;
+    // Properties by index for tuples, or null.
+    private SettableBeanProperty[] _tupleProperties;
+
+    MessagePackBeanDeserializer(BeanDeserializer src, HashMap<Integer,String> names, boolean tuple) {
+        super(src);
+        _names = names;
+        _tuple = tuple;
+    }
+
+    private MessagePackBeanDeserializer(MessagePackBeanDeserializer src, ObjectIdReader objectIdReader) {
+        super(src, objectIdReader);
+        _names = src._names;
+        _tuple = src._tuple;
+        _properties = src._properties;
+        _tupleProperties = src._tupleProperties;
+    }
+
+    private MessagePackBeanDeserializer(MessagePackBeanDeserializer src, HashSet<String> ignorableProps) {
+        super(src, ignorableProps);
+        _names = src._names;
+        _tuple = src._tuple;
+        _properties = src._properties;
+        _tupleProperties = src._tupleProperties;
+    }
+
+    @Override
+    public BeanDeserializer withObjectIdReader(ObjectIdReader objectIdReader) {
+        return new MessagePackBeanDeserializer(this, objectIdReader);
+    }
+
+    @Override
+    public BeanDeserializer withIgnorableProperties(HashSet<String> ignorableProps) {
+        return new MessagePackBeanDeserializer(this, ignorableProps);
+    }
+
+    // Properties are only final once resolved.  The vanilla flag is
+    // not used, since BeanDeserializerBase 2.2 never sets it; it is
+    // cleared to route BeanDeserializer.deserialize to
+    // deserializeFromObject.
+    @Override
+    public void resolve(DeserializationContext ctxt) throws JsonMappingException {
+        super.resolve(ctxt);
+        if (_tuple) {
+            LinkedHashMap<String,Integer> keys = new LinkedHashMap<String,Integer>();
+            for (SettableBeanProperty prop : _beanProperties)
+                keys.put(prop.getName(), IntrospectionResults.findKey(prop.getMember()));
+            IntrospectionResults.checkTupleKeys(_beanType.getRawClass(), keys);
+        }
+        if (isPlain()) {
+            HashMap<Integer,SettableBeanProperty> properties = new HashMap<Integer,SettableBeanProperty>();
+            for (Map.Entry<Integer,String> entry : _names.entrySet()) {
+                SettableBeanProperty prop = _beanProperties.find(entry.getValue());
+                if (prop != null)
+                    properties.put(entry.getKey(), prop);
+            }
+            if (!_needViewProcesing)
+                _properties = new KeyTable<SettableBeanProperty>(properties);
+            if (_tuple) {
+                int length = 0;
+                for (Integer key : properties.keySet())
+                    if (key >= 0)
+                        length = Math.max(length, key + 1);
+                _tupleProperties = new SettableBeanProperty[length];
+                for (Map.Entry<Integer,SettableBeanProperty> entry : properties.entrySet())
+                    if (entry.getKey() >= 0)
+                        _tupleProperties[entry.getKey()] = entry.getValue();
+            }
+            _vanillaProcessing = false;
+        }
+    }
+
+    // Only default construction and plain property setting.  Views
+    // are handled when reading tuples, but not by the key table.
+    private boolean isPlain() {
+        return !_nonStandardCreation && _injectables == null && _objectIdReader == null;
+    }
+
+    boolean usesKeyTable() {
+        return _properties != null;
+    }
+
+    // Elements beyond the known properties, and properties hidden by
+    // the active view, are skipped.
+    @Override
+    public Object deserializeFromArray(JsonParser jp, DeserializationContext ctxt) throws IOException, JsonProcessingException {
+        if (_tupleProperties == null)
+            return super.deserializeFromArray(jp, ctxt);
+        Object bean = _valueInstantiator.createUsingDefault(ctxt);
+        Class<?> activeView = _needViewProcesing ? ctxt.getActiveView() : null;
+        for (int i = 0; jp.nextToken() != JsonToken.END_ARRAY; i++) {
+            SettableBeanProperty prop = i < _tupleProperties.length ? _tupleProperties[i] : null;
+            if (prop == null || activeView != null && !prop.visibleInView(activeView)) {
+                jp.skipChildren();
+                continue;
+            }
+            try {
+                prop.deserializeAndSet(jp, ctxt, bean);
+            } catch (Exception e) {
+                wrapAndThrow(e, bean, prop.getName(), ctxt);
+            }
+        }
+        return bean;
+    }
+
+    @Override
+    public Object deserializeFromObject(JsonParser jp, DeserializationContext ctxt) throws IOException, JsonProcessingException {
+        if (_properties == null || !(jp instanceof MessagePackParser))
+            return super.deserializeFromObject(jp, ctxt);
+        MessagePackParser parser = (MessagePackParser) jp;
+        Object bean = _valueInstantiator.createUsingDefault(ctxt);
+        for (; jp.getCurrentToken() != JsonToken.END_OBJECT; jp.nextToken()) {
+            SettableBeanProperty prop = parser.hasIntegerKey() ? _properties.get(jp.getLongValue()) : null;
+            String propName = jp.getCurrentName();
+            jp.nextToken();
+            if (prop == null)
+                prop = _beanProperties.find(propName);
+            if (prop != null) {
+                try {
+                    prop.deserializeAndSet(jp, ctxt, bean);
+                } catch (Exception e) {
+                    wrapAndThrow(e, bean, propName, ctxt);
+                }
+            } else {
+                handleUnknownVanilla(jp, ctxt, bean, propName);
+            }
+        }
+        return bean;
+    }
+}
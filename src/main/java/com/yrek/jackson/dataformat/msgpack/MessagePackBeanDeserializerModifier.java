@@ -0,0 +1,131 @@
+package com.yrek.jackson.dataformat.msgpack;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.BeanProperty;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.deser.BeanDeserializer;
+import com.fasterxml.jackson.databind.deser.BeanDeserializerModifier;
+import com.fasterxml.jackson.databind.deser.ContextualDeserializer;
+import com.fasterxml.jackson.databind.deser.ResolvableDeserializer;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.jsontype.TypeDeserializer;
+
+public class MessagePackBeanDeserializerModifier extends BeanDeserializerModifier {
+    /**
+     * Method called by {@link BeanDeserializerFactory} when it has
+     * constructed a standard bean deserializer.  Beans with keyed
+     * properties get a deserializer that looks up keys read from
+     * MessagePack in a table.
+     */
+    @Override
+    public JsonDeserializer<?> modifyDeserializer(DeserializationConfig config, BeanDescription beanDesc, JsonDeserializer<?> deserializer) {
+        if (deserializer.getClass() != BeanDeserializer.class)
+            return deserializer;
+        HashMap<Integer,String> names = new HashMap<Integer,String>();
+        for (BeanPropertyDefinition bpd : beanDesc.findProperties())
+            if (bpd.couldDeserialize()) {
+                Integer key = IntrospectionResults.findKey(bpd.getMutator());
+                if (key != null)
+                    names.put(key, bpd.getName());
+            }
+        if (names.isEmpty())
+            return deserializer;
+        return new MessagePackBeanDeserializer((BeanDeserializer) deserializer, names, beanDesc.getClassAnnotations().get(MessagePackTuple.class) != null);
+    }
+
+    /**
+     * Method called by {@link BeanDeserializerFactory} after constructing default
+     * deserializer for an enum type.  Integers read from MessagePack
+     * are looked up in the keys of the constants before falling back
+     * to the default deserializer.
+     */
+    @Override
+    public JsonDeserializer<?> modifyEnumDeserializer(DeserializationConfig config, JavaType type, BeanDescription beanDesc, JsonDeserializer<?> deserializer) {
+        return enumKeyDeserializer(type.getRawClass(), deserializer);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Enum<T>> JsonDeserializer<?> enumKeyDeserializer(Class<?> enumClass, JsonDeserializer<?> deserializer) {
+        EnumMap<T,Integer> enumKeys = IntrospectionResults.getEnumKeys(enumClass);
+        if (enumKeys.isEmpty())
+            return deserializer;
+        return new EnumKeyJsonDeserializer<T>(enumKeys, (JsonDeserializer<T>) deserializer);
+    }
+
+    private static class EnumKeyJsonDeserializer<T extends Enum<T>> extends JsonDeserializer<T> implements ContextualDeserializer, ResolvableDeserializer {
+        private final JsonDeserializer<T> _jsonDeserializer;
+        private final EnumMap<T,Integer> _enumKeys;
+        private final KeyTable<T> _keyTable;
+
+        EnumKeyJsonDeserializer(EnumMap<T,Integer> enumKeys, JsonDeserializer<T> jsonDeserializer) {
+            this(enumKeys, jsonDeserializer, keyTable(enumKeys));
+        }
+
+        private EnumKeyJsonDeserializer(EnumMap<T,Integer> enumKeys, JsonDeserializer<T> jsonDeserializer, KeyTable<T> keyTable) {
+            _jsonDeserializer = jsonDeserializer;
+            _enumKeys = enumKeys;
+            _keyTable = keyTable;
+        }
+
+        private static <T extends Enum<T>> KeyTable<T> keyTable(EnumMap<T,Integer> enumKeys) {
+            HashMap<Integer,T> values = new HashMap<Integer,T>();
+            for (Map.Entry<T,Integer> entry : enumKeys.entrySet())
+                values.put(entry.getValue(), entry.getKey());
+            return new KeyTable<T>(values);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public JsonDeserializer<?> createContextual(DeserializationContext ctxt, BeanProperty property) throws JsonMappingException {
+            if (_jsonDeserializer instanceof ContextualDeserializer) {
+                JsonDeserializer<T> jsonDeserializer = (JsonDeserializer<T>) ((ContextualDeserializer) _jsonDeserializer).createContextual(ctxt, property);
+                if (jsonDeserializer != _jsonDeserializer)
+                    return new EnumKeyJsonDeserializer<T>(_enumKeys, jsonDeserializer, _keyTable);
+            }
+            return this;
+        }
+
+        @Override
+        public void resolve(DeserializationContext ctxt) throws JsonMappingException {
+            if (_jsonDeserializer instanceof ResolvableDeserializer)
+                ((ResolvableDeserializer) _jsonDeserializer).resolve(ctxt);
+        }
+
+        @Override
+        public T deserialize(JsonParser jp, DeserializationContext ctxt) throws IOException, JsonProcessingException {
+            if (jp.getCurrentToken() == JsonToken.VALUE_NUMBER_INT && jp instanceof MessagePackParser) {
+                T value = _keyTable.get(jp.getLongValue());
+                if (value != null)
+                    return value;
+            }
+            return _jsonDeserializer.deserialize(jp, ctxt);
+        }
+
+        @Override
+        public Object deserializeWithType(JsonParser jp, DeserializationContext ctxt, TypeDeserializer typeDeserializer) throws IOException, JsonProcessingException {
+            return typeDeserializer.deserializeTypedFromScalar(jp, ctxt);
+        }
+
+        @Override
+        public boolean isCachable() {
+            return _jsonDeserializer.isCachable();
+        }
+
+        @Override
+        public JsonDeserializer<?> getDelegatee() {
+            return _jsonDeserializer;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.yrek.jackson.dataformat.msgpack;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerationException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.ser.BeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+import com.fasterxml.jackson.databind.ser.impl.BeanAsArraySerializer;
+import com.fasterxml.jackson.databind.ser.impl.ObjectIdWriter;
+import com.fasterxml.jackson.databind.ser.impl.UnwrappingBeanSerializer;
+import com.fasterxml.jackson.databind.ser.std.BeanSerializerBase;
+import com.fasterxml.jackson.databind.util.NameTransformer;
+
+/**
+ * Bean serializer that sets the object context of the generator and,
+ * when every property is always written, passes the property count to
+ * the generator so the map header can be written before the fields.
+ * Keyed properties are named with {@link KeyedName}s, so their keys
+ * are written as is.  Classes marked with {@link MessagePackTuple}
+ * are written as arrays.
+ */
+class MessagePackBeanSerializer extends BeanSerializerBase {
+    private static final long serialVersionUID = 0L;
+
+    private final JavaType _javaType;
+    private final boolean _fixedPropertySet;
+    private final boolean _tuple;
+    // Indexes into _props by tuple position, -1 for gaps, or null.
+    private final int[] _tupleIndexes;
+
+    MessagePackBeanSerializer(SerializationConfig config, BeanDescription beanDesc, BeanSerializerBase src) {
+        super(src);
+        _javaType = beanDesc.getType();
+        _fixedPropertySet = isFixedPropertySet(config, beanDesc, _props);
+        _tuple = beanDesc.getClassAnnotations().get(MessagePackTuple.class) != null;
+        keyProperties();
+        _tupleIndexes = tupleIndexes();
+    }
+
+    private MessagePackBeanSerializer(MessagePackBeanSerializer src, ObjectIdWriter objectIdWriter) {
+        super(src, objectIdWriter);
+        _javaType = src._javaType;
+        _fixedPropertySet = src._fixedPropertySet;
+        _tuple = src._tuple;
+        _tupleIndexes = tupleIndexes();
+    }
+
+    private MessagePackBeanSerializer(MessagePackBeanSerializer src, String[] toIgnore) {
+        super(src, toIgnore);
+        _javaType = src._javaType;
+        _fixedPropertySet = src._fixedPropertySet;
+        _tuple = src._tuple;
+        _tupleIndexes = tupleIndexes();
+    }
+
+    private static boolean isFixedPropertySet(SerializationConfig config, BeanDescription beanDesc, BeanPropertyWriter[] props) {
+        JsonInclude.Include defaultInclusion = beanDesc.findSerializationInclusion(config.getSerializationInclusion());
+        for (BeanPropertyWriter prop : props) {
+            if (prop.getClass() != BeanPropertyWriter.class || prop.willSuppressNulls())
+                return false;
+            JsonInclude.Include inclusion = config.getAnnotationIntrospector().findSerializationInclusion(prop.getMember(), defaultInclusion);
+            if (inclusion != null && inclusion != JsonInclude.Include.ALWAYS)
+                return false;
+            if (prop.getType().isContainerType() && !config.isEnabled(SerializationFeature.WRITE_EMPTY_JSON_ARRAYS))
+                return false;
+        }
+        return true;
+    }
+
+    // Gives keyed properties names that carry their encoded keys.
+    private void keyProperties() {
+        for (int i = 0; i < _props.length; i++) {
+            BeanPropertyWriter prop = _props[i];
+            if (prop.getClass() != BeanPropertyWriter.class)
+                continue;
+            Integer key = IntrospectionResults.findKey(prop.getMember());
+            if (key == null)
+                continue;
+            _props[i] = new KeyedPropertyWriter(prop, new KeyedName(prop.getName(), key));
+            if (_filteredProps != null && _filteredProps[i] == prop)
+                _filteredProps[i] = _props[i];
+        }
+    }
+
+    private int[] tupleIndexes() {
+        if (!_tuple)
+            return null;
+        int length = 0;
+        for (BeanPropertyWriter prop : _props) {
+            Integer key = IntrospectionResults.findKey(prop.getMember());
+            if (key != null && key >= 0)
+                length = Math.max(length, key + 1);
+        }
+        int[] tupleIndexes = new int[length];
+        Arrays.fill(tupleIndexes, -1);
+        for (int i = 0; i < _props.length; i++) {
+            Integer key = IntrospectionResults.findKey(_props[i].getMember());
+            if (key != null && key >= 0)
+                tupleIndexes[key] = i;
+        }
+        return tupleIndexes;
+    }
+
+    private static final class KeyedPropertyWriter extends BeanPropertyWriter {
+        KeyedPropertyWriter(BeanPropertyWriter base, SerializedString name) {
+            super(base, name);
+        }
+    }
+
+    // Lets a property filter write a tuple element.
+    private static final class ColumnPropertyWriter extends BeanPropertyWriter {
+        ColumnPropertyWriter(BeanPropertyWriter base) {
+            super(base);
+        }
+
+        @Override
+        public void serializeAsField(Object bean, JsonGenerator jgen, SerializerProvider prov) throws Exception {
+            serializeAsColumn(bean, jgen, prov);
+        }
+    }
+
+    @Override
+    public BeanSerializerBase withObjectIdWriter(ObjectIdWriter objectIdWriter) {
+        return new MessagePackBeanSerializer(this, objectIdWriter);
+    }
+
+    @Override
+    protected BeanSerializerBase withIgnorals(String[] toIgnore) {
+        return new MessagePackBeanSerializer(this, toIgnore);
+    }
+
+    @Override
+    protected BeanSerializerBase asArraySerializer() {
+        if (_objectIdWriter == null && _anyGetterWriter == null && _propertyFilterId == null)
+            return new BeanAsArraySerializer(this);
+        return this;
+    }
+
+    @Override
+    public void resolve(SerializerProvider provider) throws JsonMappingException {
+        super.resolve(provider);
+        if (_tuple) {
+            LinkedHashMap<String,Integer> keys = new LinkedHashMap<String,Integer>();
+            for (BeanPropertyWriter prop : _props)
+                keys.put(prop.getName(), IntrospectionResults.findKey(prop.getMember()));
+            IntrospectionResults.checkTupleKeys(handledType(), keys);
+        }
+    }
+
+    @Override
+    public JsonSerializer<Object> unwrappingSerializer(NameTransformer unwrapper) {
+        return new UnwrappingBeanSerializer(this, unwrapper);
+    }
+
+    private int propertyCount(SerializerProvider provider) {
+        if (!_fixedPropertySet || _anyGetterWriter != null || _propertyFilterId != null)
+            return -1;
+        if (_filteredProps != null && provider.getActiveView() != null)
+            return -1;
+        return _props.length;
+    }
+
+    @Override
+    public void serialize(Object bean, JsonGenerator jgen, SerializerProvider provider) throws IOException, JsonGenerationException {
+        if (jgen instanceof MessagePackGenerator)
+            ((MessagePackGenerator) jgen).setObjectContext(_javaType);
+        if (_objectIdWriter != null) {
+            _serializeWithObjectId(bean, jgen, provider, true);
+            return;
+        }
+        if (_tupleIndexes != null) {
+            if (jgen instanceof MessagePackGenerator)
+                ((MessagePackGenerator) jgen).writeStartArray(_tupleIndexes.length);
+            else
+                jgen.writeStartArray();
+            serializeTuple(bean, jgen, provider);
+            jgen.writeEndArray();
+            return;
+        }
+        int size = propertyCount(provider);
+        if (size >= 0 && jgen instanceof MessagePackGenerator)
+            ((MessagePackGenerator) jgen).writeStartObject(size);
+        else
+            jgen.writeStartObject();
+        if (_propertyFilterId != null)
+            serializeFieldsFiltered(bean, jgen, provider);
+        else
+            serializeFields(bean, jgen, provider);
+        jgen.writeEndObject();
+    }
+
+    // Properties hidden by the active view or left out by the filter
+    // are written as nil, keeping the positions of the others.
+    private void serializeTuple(Object bean, JsonGenerator jgen, SerializerProvider provider) throws IOException, JsonGenerationException {
+        BeanPropertyWriter[] props = _filteredProps != null && provider.getActiveView() != null ? _filteredProps : _props;
+        BeanPropertyFilter filter = _propertyFilterId == null ? null : findFilter(provider);
+        BeanPropertyWriter prop = null;
+        try {
+            for (int index : _tupleIndexes) {
+                prop = index < 0 ? null : props[index];
+                if (prop == null) {
+                    jgen.writeNull();
+                } else if (filter == null) {
+                    prop.serializeAsColumn(bean, jgen, provider);
+                } else {
+                    JsonStreamContext context = jgen.getOutputContext();
+                    int count = context.getEntryCount();
+                    filter.serializeAsField(bean, jgen, provider, new ColumnPropertyWriter(prop));
+                    if (context.getEntryCount() == count)
+                        jgen.writeNull();
+                }
+            }
+        } catch (Exception e) {
+            wrapAndThrow(provider, e, bean, prop == null ? "[null]" : prop.getName());
+        }
+    }
+
+    @Override
+    public void serializeWithType(Object bean, JsonGenerator jgen, SerializerProvider provider, TypeSerializer typeSer) throws IOException, JsonGenerationException {
+        if (jgen instanceof MessagePackGenerator)
+            ((MessagePackGenerator) jgen).setObjectContext(_javaType);
+        if (_tupleIndexes == null || _objectIdWriter != null) {
+            super.serializeWithType(bean, jgen, provider, typeSer);
+            return;
+        }
+        String typeId = customTypeId(bean);
+        if (typeId == null)
+            typeSer.writeTypePrefixForArray(bean, jgen);
+        else
+            typeSer.writeCustomTypePrefixForArray(bean, jgen, typeId);
+        serializeTuple(bean, jgen, provider);
+        if (typeId == null)
+            typeSer.writeTypeSuffixForArray(bean, jgen);
+        else
+            typeSer.writeCustomTypeSuffixForArray(bean, jgen, typeId);
+    }
+
+    // As in BeanSerializerBase, which keeps its version private.
+    private String customTypeId(Object bean) {
+        if (_typeId == null)
+            return null;
+        Object typeId = _typeId.getValue(bean);
+        if (typeId == null)
+            return "";
+        return typeId instanceof String ? (String) typeId : typeId.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "MessagePackBeanSerializer for "+handledType().getName();
+    }
+}
@@ -1,6 +1,9 @@
 package com.yrek.jackson.dataformat.msgpack;
 
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.EnumMap;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -9,10 +12,18 @@ import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.BeanProperty;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.jsonFormatVisitors.JsonFormatVisitorWrapper;
 import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.ser.BeanSerializer;
 import com.fasterxml.jackson.databind.ser.BeanSerializerModifier;
+import com.fasterxml.jackson.databind.ser.ContextualSerializer;
+import com.fasterxml.jackson.databind.ser.ResolvableSerializer;
+import com.fasterxml.jackson.databind.ser.std.BeanSerializerBase;
+import com.fasterxml.jackson.databind.type.ArrayType;
+import com.fasterxml.jackson.databind.type.CollectionType;
 
 public class MessagePackBeanSerializerModifier extends BeanSerializerModifier {
     /**
@@ -30,9 +41,225 @@ public class MessagePackBeanSerializerModifier extends BeanSerializerModifier {
     @Override
     @SuppressWarnings("unchecked")
     public JsonSerializer<?> modifySerializer(SerializationConfig config, BeanDescription beanDesc, final JsonSerializer<?> serializer) {
+        if (serializer.getClass() == BeanSerializer.class)
+            return new MessagePackBeanSerializer(config, beanDesc, (BeanSerializerBase) serializer);
         return new ModifiedJsonSerializer(beanDesc.getType(), serializer);
     }
 
+    /**
+     * Method called by {@link BeanSerializerFactory} after constructing default
+     * serializer for a Java array type.  Arrays that serialize as
+     * arrays are wrapped to pass their length to the generator.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public JsonSerializer<?> modifyArraySerializer(SerializationConfig config, ArrayType valueType, BeanDescription beanDesc, JsonSerializer<?> serializer) {
+        Class<?> contentClass = valueType.getContentType().getRawClass();
+        if (contentClass == Byte.TYPE || contentClass == Character.TYPE)
+            return serializer;
+        return new ArraySizedJsonSerializer<Object>((JsonSerializer<Object>) serializer);
+    }
+
+    /**
+     * Method called by {@link BeanSerializerFactory} after constructing default
+     * serializer for a {@link Collection} type.  The serializer is
+     * wrapped to pass the collection size to the generator.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public JsonSerializer<?> modifyCollectionSerializer(SerializationConfig config, CollectionType valueType, BeanDescription beanDesc, JsonSerializer<?> serializer) {
+        return new CollectionSizedJsonSerializer<Object>((JsonSerializer<Object>) serializer);
+    }
+
+    /**
+     * Method called by {@link BeanSerializerFactory} after constructing default
+     * serializer for an enum type.  Constants annotated with keys are
+     * written as their keys.
+     */
+    @Override
+    public JsonSerializer<?> modifyEnumSerializer(SerializationConfig config, JavaType valueType, BeanDescription beanDesc, JsonSerializer<?> serializer) {
+        return enumKeySerializer(valueType.getRawClass(), serializer);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Enum<T>> JsonSerializer<?> enumKeySerializer(Class<?> enumClass, JsonSerializer<?> serializer) {
+        EnumMap<T,Integer> enumKeys = IntrospectionResults.getEnumKeys(enumClass);
+        if (enumKeys.isEmpty())
+            return serializer;
+        return new EnumKeyJsonSerializer<T>(enumKeys, (JsonSerializer<T>) serializer);
+    }
+
+    private static abstract class SizedJsonSerializer<T> extends JsonSerializer<T> implements ContextualSerializer, ResolvableSerializer {
+        protected final JsonSerializer<T> _jsonSerializer;
+
+        SizedJsonSerializer(JsonSerializer<T> jsonSerializer) {
+            _jsonSerializer = jsonSerializer;
+        }
+
+        abstract int size(T value);
+
+        abstract SizedJsonSerializer<T> withSerializer(JsonSerializer<T> jsonSerializer);
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public JsonSerializer<?> createContextual(SerializerProvider provider, BeanProperty property) throws JsonMappingException {
+            if (_jsonSerializer instanceof ContextualSerializer) {
+                JsonSerializer<T> jsonSerializer = (JsonSerializer<T>) ((ContextualSerializer) _jsonSerializer).createContextual(provider, property);
+                if (jsonSerializer != _jsonSerializer)
+                    return withSerializer(jsonSerializer);
+            }
+            return this;
+        }
+
+        @Override
+        public void resolve(SerializerProvider provider) throws JsonMappingException {
+            if (_jsonSerializer instanceof ResolvableSerializer)
+                ((ResolvableSerializer) _jsonSerializer).resolve(provider);
+        }
+
+        @Override
+        public void serialize(T value, JsonGenerator jgen, SerializerProvider provider) throws IOException, JsonProcessingException {
+            if (!(jgen instanceof MessagePackGenerator)) {
+                _jsonSerializer.serialize(value, jgen, provider);
+                return;
+            }
+            MessagePackGenerator generator = (MessagePackGenerator) jgen;
+            int size = size(value);
+            // A single element may be written without the array, so the
+            // hint could be taken by the element's own container.
+            if (size != 1 || !provider.isEnabled(SerializationFeature.WRITE_SINGLE_ELEM_ARRAYS_UNWRAPPED))
+                generator.setSizeHint(size);
+            try {
+                _jsonSerializer.serialize(value, jgen, provider);
+            } finally {
+                generator.clearSizeHint();
+            }
+        }
+
+        @Override
+        public void serializeWithType(T value, JsonGenerator jgen, SerializerProvider provider, TypeSerializer typeSer) throws IOException, JsonProcessingException {
+            // type information may add an enclosing array or object
+            _jsonSerializer.serializeWithType(value, jgen, provider, typeSer);
+        }
+
+        @Override
+        public Class<T> handledType() {
+            return _jsonSerializer.handledType();
+        }
+
+        @Override
+        public boolean isEmpty(T value) {
+            return _jsonSerializer.isEmpty(value);
+        }
+
+        @Override
+        public boolean usesObjectId() {
+            return _jsonSerializer.usesObjectId();
+        }
+
+        @Override
+        public boolean isUnwrappingSerializer() {
+            return _jsonSerializer.isUnwrappingSerializer();
+        }
+
+        @Override
+        public JsonSerializer<?> getDelegatee() {
+            return _jsonSerializer;
+        }
+
+        @Override
+        public void acceptJsonFormatVisitor(JsonFormatVisitorWrapper visitor, JavaType type) throws JsonMappingException {
+            _jsonSerializer.acceptJsonFormatVisitor(visitor, type);
+        }
+    }
+
+    private static class ArraySizedJsonSerializer<T> extends SizedJsonSerializer<T> {
+        ArraySizedJsonSerializer(JsonSerializer<T> jsonSerializer) {
+            super(jsonSerializer);
+        }
+
+        @Override
+        int size(T value) {
+            return Array.getLength(value);
+        }
+
+        @Override
+        SizedJsonSerializer<T> withSerializer(JsonSerializer<T> jsonSerializer) {
+            return new ArraySizedJsonSerializer<T>(jsonSerializer);
+        }
+    }
+
+    private static class CollectionSizedJsonSerializer<T> extends SizedJsonSerializer<T> {
+        CollectionSizedJsonSerializer(JsonSerializer<T> jsonSerializer) {
+            super(jsonSerializer);
+        }
+
+        @Override
+        int size(T value) {
+            return ((Collection<?>) value).size();
+        }
+
+        @Override
+        SizedJsonSerializer<T> withSerializer(JsonSerializer<T> jsonSerializer) {
+            return new CollectionSizedJsonSerializer<T>(jsonSerializer);
+        }
+    }
+
+    private static class EnumKeyJsonSerializer<T extends Enum<T>> extends JsonSerializer<T> implements ContextualSerializer {
+        private final EnumMap<T,Integer> _enumKeys;
+        private final JsonSerializer<T> _jsonSerializer;
+
+        EnumKeyJsonSerializer(EnumMap<T,Integer> enumKeys, JsonSerializer<T> jsonSerializer) {
+            _enumKeys = enumKeys;
+            _jsonSerializer = jsonSerializer;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public JsonSerializer<?> createContextual(SerializerProvider provider, BeanProperty property) throws JsonMappingException {
+            if (_jsonSerializer instanceof ContextualSerializer) {
+                JsonSerializer<T> jsonSerializer = (JsonSerializer<T>) ((ContextualSerializer) _jsonSerializer).createContextual(provider, property);
+                if (jsonSerializer != _jsonSerializer)
+                    return new EnumKeyJsonSerializer<T>(_enumKeys, jsonSerializer);
+            }
+            return this;
+        }
+
+        @Override
+        public void serialize(T value, JsonGenerator jgen, SerializerProvider provider) throws IOException, JsonProcessingException {
+            if (jgen instanceof MessagePackGenerator) {
+                Integer key = _enumKeys.get(value);
+                if (key != null) {
+                    jgen.writeNumber(key.intValue());
+                    return;
+                }
+            }
+            _jsonSerializer.serialize(value, jgen, provider);
+        }
+
+        @Override
+        public void serializeWithType(T value, JsonGenerator jgen, SerializerProvider provider, TypeSerializer typeSer) throws IOException, JsonProcessingException {
+            typeSer.writeTypePrefixForScalar(value, jgen);
+            serialize(value, jgen, provider);
+            typeSer.writeTypeSuffixForScalar(value, jgen);
+        }
+
+        @Override
+        public Class<T> handledType() {
+            return _jsonSerializer.handledType();
+        }
+
+        @Override
+        public JsonSerializer<?> getDelegatee() {
+            return _jsonSerializer;
+        }
+
+        @Override
+        public void acceptJsonFormatVisitor(JsonFormatVisitorWrapper visitor, JavaType type) throws JsonMappingException {
+            _jsonSerializer.acceptJsonFormatVisitor(visitor, type);
+        }
+    }
+
     private static class ModifiedJsonSerializer<T> extends JsonSerializer<T> {
         private JavaType _javaType;
         private JsonSerializer<T> _jsonSerializer;
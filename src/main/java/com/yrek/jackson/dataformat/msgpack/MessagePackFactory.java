@@ -1,12 +1,12 @@
 package com.yrek.jackson.dataformat.msgpack;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.EnumSet;
 
 import com.fasterxml.jackson.core.JsonEncoding;
@@ -16,6 +16,7 @@ import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.ObjectCodec;
 import com.fasterxml.jackson.core.io.IOContext;
+import com.fasterxml.jackson.core.sym.BytesToNameCanonicalizer;
 
 public class MessagePackFactory extends JsonFactory {
     private static final long serialVersionUID = 0L;
@@ -48,6 +49,7 @@ public class MessagePackFactory extends JsonFactory {
     private EnumSet<MessagePackParser.Feature> _parserFeatures = MessagePackFeature.defaults(MessagePackParser.Feature.class);
     private EnumSet<MessagePackGenerator.Feature> _generatorFeatures = MessagePackFeature.defaults(MessagePackGenerator.Feature.class);
     private ObjectCodec _objectCodec;
+    private int _maxValueLength = Integer.MAX_VALUE;
 
     public MessagePackFactory() {
         this(null);
@@ -120,6 +122,20 @@ public class MessagePackFactory extends JsonFactory {
         return _generatorFeatures.contains(f);
     }
 
+    /**
+     * Set the length of the largest string or binary value that
+     * parsers read into memory.  See
+     * {@link MessagePackParser#setMaxValueLength}.
+     */
+    public MessagePackFactory setMaxValueLength(int maxValueLength) {
+        _maxValueLength = maxValueLength;
+        return this;
+    }
+
+    public int getMaxValueLength() {
+        return _maxValueLength;
+    }
+
     @Override
     public String getFormatName() {
         return FORMAT_NAME;
@@ -132,12 +148,42 @@ public class MessagePackFactory extends JsonFactory {
 
     @Override
     protected JsonParser _createParser(InputStream in, IOContext ctxt) throws IOException, JsonParseException {
-        return new MessagePackParser(ctxt, _objectCodec, EnumSet.copyOf(_msgPackFeatures), EnumSet.copyOf(_parserFeatures), in);
+        return new MessagePackParser(ctxt, _objectCodec, EnumSet.copyOf(_msgPackFeatures), EnumSet.copyOf(_parserFeatures), makeSymbols(), in).setMaxValueLength(_maxValueLength);
     }
 
     @Override
     protected JsonParser _createParser(byte[] data, int offset, int len, IOContext ctxt) throws IOException, JsonParseException {
-        return _createParser(new ByteArrayInputStream(data, offset, len), ctxt);
+        return new MessagePackParser(ctxt, _objectCodec, EnumSet.copyOf(_msgPackFeatures), EnumSet.copyOf(_parserFeatures), makeSymbols(), data, offset, len).setMaxValueLength(_maxValueLength);
+    }
+
+    /**
+     * Create a parser over the remaining bytes of a ByteBuffer, which
+     * may be a direct buffer such as a file mapped with
+     * {@link java.nio.channels.FileChannel#map}.
+     */
+    public MessagePackParser createParser(ByteBuffer data) throws IOException, JsonParseException {
+        IOContext ctxt = _createContext(data, true);
+        return new MessagePackParser(ctxt, _objectCodec, EnumSet.copyOf(_msgPackFeatures), EnumSet.copyOf(_parserFeatures), makeSymbols(), data).setMaxValueLength(_maxValueLength);
+    }
+
+    /**
+     * Create a non-blocking parser, which is given its input with
+     * {@link MessagePackParser#feedInput} and returns
+     * {@link com.fasterxml.jackson.core.JsonToken#NOT_AVAILABLE}
+     * when it needs more.  {@link JsonParser#skipChildren} requires
+     * the rest of the container to have been given.
+     */
+    public MessagePackParser createNonBlockingParser() throws IOException {
+        IOContext ctxt = _createContext(null, false);
+        return new MessagePackParser(ctxt, _objectCodec, EnumSet.copyOf(_msgPackFeatures), EnumSet.copyOf(_parserFeatures), makeSymbols()).setMaxValueLength(_maxValueLength);
+    }
+
+    // Parsers share the factory's field name table through child
+    // tables, which are merged back when the parser is closed.
+    private BytesToNameCanonicalizer makeSymbols() {
+        if (!isEnabled(JsonFactory.Feature.CANONICALIZE_FIELD_NAMES))
+            return null;
+        return _rootByteSymbols.makeChild(true, isEnabled(JsonFactory.Feature.INTERN_FIELD_NAMES));
     }
 
     @Override
@@ -1,12 +1,16 @@
 package com.yrek.jackson.dataformat.msgpack;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.Map;
 
 import com.fasterxml.jackson.core.Base64Variant;
 import com.fasterxml.jackson.core.JsonGenerationException;
@@ -22,9 +26,18 @@ import com.fasterxml.jackson.core.Version;
 import com.fasterxml.jackson.core.io.IOContext;
 import com.fasterxml.jackson.databind.JavaType;
 
+import com.yrek.jackson.dataformat.util.BufferPool;
+
 public class MessagePackGenerator extends JsonGenerator {
     public enum Feature implements MessagePackFeature.Feature {
-        PLACEHOLDER(true),
+        /**
+         * Write strings of 32 to 255 bytes with the str8 header, and
+         * binary data with the bin headers, as in the current
+         * MessagePack spec.  When disabled, only the raw headers of
+         * the original spec are written, and binary data is written
+         * as raw.
+         */
+        WRITE_BIN_AND_STR8(false),
             ;
 
         private final boolean _defaultState;
@@ -38,11 +51,9 @@ public class MessagePackGenerator extends JsonGenerator {
     }
 
     private class OutputContext extends JsonStreamContext {
-        private OutputStream _out;
-
-        OutputContext(OutputStream out) {
-            _out = out;
+        OutputContext() {
             _type = TYPE_ROOT;
+            _index = -1;
         }
 
         @Override
@@ -59,58 +70,29 @@ public class MessagePackGenerator extends JsonGenerator {
             return null;
         }
 
-        public OutputStream out() {
-            return _out;
-        }
-
         public void endElement() {
+            _index++;
         }
 
         public OutputContext endContext() throws IOException {
             return this;
         }
-
-        public void i8(int i8) throws IOException {
-            out().write(i8);
-        }
-
-        public void i16(int i16) throws IOException {
-            out().write((i16>>8)&255);
-            out().write(i16&255);
-        }
-
-        public void i32(int i32) throws IOException {
-            out().write((i32>>24)&255);
-            out().write((i32>>16)&255);
-            out().write((i32>>8)&255);
-            out().write(i32&255);
-        }
-
-        public void i64(long i64) throws IOException {
-            out().write((int) (i64>>56)&255);
-            out().write((int) (i64>>48)&255);
-            out().write((int) (i64>>40)&255);
-            out().write((int) (i64>>32)&255);
-            out().write((int) (i64>>24)&255);
-            out().write((int) (i64>>16)&255);
-            out().write((int) (i64>>8)&255);
-            out().write((int) i64&255);
-        }
     }
 
     private class ContainerOutputContext extends OutputContext {
         protected OutputContext _context;
+        protected final int _size;
+        protected final int _gap;
         JavaType _saveObjectContext;
 
-        ContainerOutputContext(OutputContext context) {
-            // This could be made more efficient by getting the element
-            // count beforehand instead of serializing into a buffer and
-            // then copying the buffer after getting the count.
-            // Probably need to configure a decorated SerializerFactory
-            // that returns serializers decorated to pass the relevant
-            // counts to the generator.
-            super(new ByteArrayOutputStream());
+        ContainerOutputContext(OutputContext context, int size) throws IOException {
+            // When the element count is known beforehand, the header
+            // has already been written and the elements follow it
+            // directly.  Otherwise, room for the header is reserved in
+            // the buffer and it is filled in after getting the count.
             _context = context;
+            _size = size;
+            _gap = size < 0 ? reserveHeader() : -1;
             _index = -1;
             _saveObjectContext = _objectContext;
         }
@@ -134,24 +116,22 @@ public class MessagePackGenerator extends JsonGenerator {
     }
 
     private class ArrayOutputContext extends ContainerOutputContext {
-        ArrayOutputContext(OutputContext context) {
-            super(context);
+        ArrayOutputContext(OutputContext context, int size) throws IOException {
+            super(context, size);
             _type = TYPE_ARRAY;
+            if (size >= 0)
+                writeArrayHeader(size);
         }
 
         @Override
         public OutputContext endContext() throws IOException {
             int count = getEntryCount();
-            if (count < 16) {
-                _context.i8(0x90 | count);
-            } else if (count < 0x10000) {
-                _context.i8(0xdc);
-                _context.i16(count);
+            if (_size >= 0) {
+                if (count != _size)
+                    throw new JsonGenerationException("Array size mismatch:"+count+","+_size);
             } else {
-                _context.i8(0xdd);
-                _context.i32(count);
+                patchHeader(_gap, count, 0x90, 0xdc, 0xdd);
             }
-            ((ByteArrayOutputStream) out()).writeTo(_context.out());
             return super.endContext();
         }
     }
@@ -159,9 +139,11 @@ public class MessagePackGenerator extends JsonGenerator {
     private class MapOutputContext extends ContainerOutputContext {
         private String _currentName;
 
-        MapOutputContext(OutputContext context) {
-            super(context);
+        MapOutputContext(OutputContext context, int size) throws IOException {
+            super(context, size < 0 ? size : 2*size);
             _type = TYPE_OBJECT;
+            if (size >= 0)
+                writeMapHeader(size);
         }
 
         @Override
@@ -188,21 +170,23 @@ public class MessagePackGenerator extends JsonGenerator {
             int count = getEntryCount();
             if ((count & 1) != 0)
                 throw new JsonGenerationException("Odd number of objects in map:"+count);
-            count >>= 1;
-            if (count < 16) {
-                _context.i8(0x80 | count);
-            } else if (count < 0x10000) {
-                _context.i8(0xde);
-                _context.i16(count);
+            if (_size >= 0) {
+                if (count != _size)
+                    throw new JsonGenerationException("Map size mismatch:"+(count>>1)+","+(_size>>1));
             } else {
-                _context.i8(0xdf);
-                _context.i32(count);
+                patchHeader(_gap, count >> 1, 0x80, 0xde, 0xdf);
             }
-            ((ByteArrayOutputStream) out()).writeTo(_context.out());
             return super.endContext();
         }
     }
 
+    private static final int MAX_HEADER = 5;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int TRANSFER_SIZE = 4096;
+    private static final int SHORT_STRING = 1024;
+    private static final int CHUNK_SIZE = 65536;
+    private static final int SPILL_THRESHOLD = 1048576;
+
     private IOContext _ioContext;
     private ObjectCodec _objectCodec;
     private EnumSet<MessagePackFactory.Feature> _msgPackFeatures;
@@ -212,8 +196,29 @@ public class MessagePackGenerator extends JsonGenerator {
     private OutputContext _outputContext;
     private JavaType _objectContext;
     private IntrospectionResults _introspectionResults;
+    private JavaType _encodedNamesType;
+    private Map<SerializableString,byte[]> _encodedNames;
+    private boolean _encodedNamesBinAndStr8;
     private boolean _closed;
 
+    private int _sizeHint = -1;
+    private OutputContext _sizeHintContext;
+    private int _sizeHintIndex;
+
+    // Output is encoded into _buffer, which is written to the output
+    // stream when full, flushed or closed.  While containers of
+    // unknown size are open, the buffer grows instead.  Each such
+    // container reserves MAX_HEADER bytes for its header, recorded in
+    // _gaps as offset and unused length.  The header is written
+    // right-aligned into the reserved bytes when the container ends,
+    // and the unused bytes are squeezed out in one pass when the
+    // outermost one ends.
+    private byte[] _buffer;
+    private int _bufferLength;
+    private int _bufferDepth;
+    private int[] _gaps;
+    private int _gapCount;
+
     public MessagePackGenerator(IOContext ctxt, ObjectCodec codec, EnumSet<MessagePackFactory.Feature> msgPackFeatures, EnumSet<Feature> generatorFeatures, OutputStream out) {
         _ioContext = ctxt;
         _objectCodec = codec;
@@ -221,18 +226,225 @@ public class MessagePackGenerator extends JsonGenerator {
         _generatorFeatures = generatorFeatures;
         _outputStream = out;
         
-        _outputContext = new OutputContext(out);
+        _outputContext = new OutputContext();
+        _buffer = BufferPool.allocate(INITIAL_BUFFER_SIZE);
+        _gaps = new int[16];
+    }
+
+    private void ensure(int length) throws IOException {
+        if (_bufferLength + length > _buffer.length) {
+            if (_bufferDepth == 0)
+                flushBuffer();
+            if (_bufferLength + length > _buffer.length)
+                _buffer = BufferPool.reallocate(_buffer, _bufferLength, Math.max(2*_buffer.length, _bufferLength + length));
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (_bufferLength > 0) {
+            _outputStream.write(_buffer, 0, _bufferLength);
+            _bufferLength = 0;
+        }
+    }
+
+    private void write(byte[] b, int offset, int length) throws IOException {
+        if (_bufferDepth == 0 && length >= _buffer.length) {
+            flushBuffer();
+            _outputStream.write(b, offset, length);
+            return;
+        }
+        ensure(length);
+        System.arraycopy(b, offset, _buffer, _bufferLength, length);
+        _bufferLength += length;
+    }
+
+    private void writeTag(int tag) throws IOException {
+        ensure(1);
+        _buffer[_bufferLength++] = (byte) tag;
+    }
+
+    private void writeTag8(int tag, int i8) throws IOException {
+        ensure(2);
+        byte[] buffer = _buffer;
+        int i = _bufferLength;
+        buffer[i] = (byte) tag;
+        buffer[i+1] = (byte) i8;
+        _bufferLength = i + 2;
+    }
+
+    private void writeTag16(int tag, int i16) throws IOException {
+        ensure(3);
+        byte[] buffer = _buffer;
+        int i = _bufferLength;
+        buffer[i] = (byte) tag;
+        buffer[i+1] = (byte) (i16>>8);
+        buffer[i+2] = (byte) i16;
+        _bufferLength = i + 3;
+    }
+
+    private void writeTag32(int tag, int i32) throws IOException {
+        ensure(5);
+        byte[] buffer = _buffer;
+        int i = _bufferLength;
+        buffer[i] = (byte) tag;
+        buffer[i+1] = (byte) (i32>>24);
+        buffer[i+2] = (byte) (i32>>16);
+        buffer[i+3] = (byte) (i32>>8);
+        buffer[i+4] = (byte) i32;
+        _bufferLength = i + 5;
+    }
+
+    private void writeTag64(int tag, long i64) throws IOException {
+        ensure(9);
+        byte[] buffer = _buffer;
+        int i = _bufferLength;
+        buffer[i] = (byte) tag;
+        buffer[i+1] = (byte) (i64>>56);
+        buffer[i+2] = (byte) (i64>>48);
+        buffer[i+3] = (byte) (i64>>40);
+        buffer[i+4] = (byte) (i64>>32);
+        buffer[i+5] = (byte) (i64>>24);
+        buffer[i+6] = (byte) (i64>>16);
+        buffer[i+7] = (byte) (i64>>8);
+        buffer[i+8] = (byte) i64;
+        _bufferLength = i + 9;
+    }
+
+    private void writeStringHeader(int length) throws IOException {
+        if (length < 32)
+            writeTag(0xa0 | length);
+        else if (length < 256 && isEnabled(Feature.WRITE_BIN_AND_STR8))
+            writeTag8(0xd9, length);
+        else if (length < 0x10000)
+            writeTag16(0xda, length);
+        else
+            writeTag32(0xdb, length);
+    }
+
+    private int stringHeaderLength(int length) {
+        if (length < 32)
+            return 1;
+        else if (length < 256 && isEnabled(Feature.WRITE_BIN_AND_STR8))
+            return 2;
+        else if (length < 0x10000)
+            return 3;
+        else
+            return 5;
+    }
+
+    private void writeBinaryHeader(int length) throws IOException {
+        if (!isEnabled(Feature.WRITE_BIN_AND_STR8))
+            writeStringHeader(length);
+        else if (length < 256)
+            writeTag8(0xc4, length);
+        else if (length < 0x10000)
+            writeTag16(0xc5, length);
+        else
+            writeTag32(0xc6, length);
+    }
+
+    private void writeArrayHeader(int count) throws IOException {
+        if (count < 16)
+            writeTag(0x90 | count);
+        else if (count < 0x10000)
+            writeTag16(0xdc, count);
+        else
+            writeTag32(0xdd, count);
+    }
+
+    private void writeMapHeader(int count) throws IOException {
+        if (count < 16)
+            writeTag(0x80 | count);
+        else if (count < 0x10000)
+            writeTag16(0xde, count);
+        else
+            writeTag32(0xdf, count);
+    }
+
+    private int reserveHeader() throws IOException {
+        ensure(MAX_HEADER);
+        if (_bufferDepth++ == 0)
+            _gapCount = 0;
+        if (2*_gapCount >= _gaps.length)
+            _gaps = Arrays.copyOf(_gaps, 2*_gaps.length);
+        _gaps[2*_gapCount] = _bufferLength;
+        _gaps[2*_gapCount+1] = 0;
+        _bufferLength += MAX_HEADER;
+        return _gapCount++;
+    }
+
+    private void patchHeader(int gap, int count, int fixTag, int tag16, int tag32) throws IOException {
+        int end = _gaps[2*gap] + MAX_HEADER;
+        if (count < 16) {
+            _buffer[end-1] = (byte) (fixTag | count);
+            _gaps[2*gap+1] = MAX_HEADER - 1;
+        } else if (count < 0x10000) {
+            _buffer[end-3] = (byte) tag16;
+            _buffer[end-2] = (byte) (count>>8);
+            _buffer[end-1] = (byte) count;
+            _gaps[2*gap+1] = MAX_HEADER - 3;
+        } else {
+            _buffer[end-5] = (byte) tag32;
+            _buffer[end-4] = (byte) (count>>24);
+            _buffer[end-3] = (byte) (count>>16);
+            _buffer[end-2] = (byte) (count>>8);
+            _buffer[end-1] = (byte) count;
+        }
+        if (--_bufferDepth == 0)
+            squeezeGaps();
+    }
+
+    private void squeezeGaps() {
+        int length = _gaps[0];
+        for (int i = 0; i < _gapCount; i++) {
+            int start = _gaps[2*i] + _gaps[2*i+1];
+            int end = i + 1 < _gapCount ? _gaps[2*i+2] : _bufferLength;
+            System.arraycopy(_buffer, start, _buffer, length, end - start);
+            length += end - start;
+        }
+        _bufferLength = length;
+        _gapCount = 0;
     }
 
     void setObjectContext(JavaType objectContext, IntrospectionResults introspectionResults) {
         _objectContext = objectContext;
         _introspectionResults = introspectionResults;
+        _encodedNamesType = null;
+        _encodedNames = null;
     }
 
     void setObjectContext(JavaType objectContext) {
         _objectContext = objectContext;
     }
 
+    /**
+     * Pass the element count of the array that the next call to
+     * {@link #writeStartArray()} will start, so that its header can be
+     * written up front.  The hint is dropped if anything else is
+     * written first.
+     */
+    void setSizeHint(int size) {
+        _sizeHint = size;
+        _sizeHintContext = _outputContext;
+        _sizeHintIndex = _outputContext.getCurrentIndex();
+    }
+
+    /**
+     * Drop a size hint that was not taken.
+     */
+    void clearSizeHint() {
+        _sizeHint = -1;
+        _sizeHintContext = null;
+    }
+
+    private int takeSizeHint() {
+        int size = -1;
+        if (_sizeHintContext == _outputContext && _sizeHintIndex == _outputContext.getCurrentIndex())
+            size = _sizeHint;
+        clearSizeHint();
+        return size;
+    }
+
     /**
      * Method for enabling specified parser features:
      * check {@link Feature} for list of available features.
@@ -352,7 +564,19 @@ public class MessagePackGenerator extends JsonGenerator {
      */
     @Override
     public void writeStartArray() throws IOException, JsonGenerationException {
-        _outputContext = new ArrayOutputContext(_outputContext);
+        writeStartArray(takeSizeHint());
+    }
+
+    /**
+     * Method for writing starting marker of an Array value whose
+     * element count is known beforehand, so the header can be written
+     * immediately instead of buffering the elements.
+     * Exactly <code>size</code> elements must be written before
+     * {@link #writeEndArray}.  A negative size means the count is
+     * not known.
+     */
+    public void writeStartArray(int size) throws IOException, JsonGenerationException {
+        _outputContext = new ArrayOutputContext(_outputContext, size);
     }
 
     /**
@@ -380,7 +604,21 @@ public class MessagePackGenerator extends JsonGenerator {
      */
     @Override
     public void writeStartObject() throws IOException, JsonGenerationException {
-        _outputContext = new MapOutputContext(_outputContext);
+        // size hints are element counts of arrays
+        clearSizeHint();
+        writeStartObject(-1);
+    }
+
+    /**
+     * Method for writing starting marker of an Object value whose
+     * entry count is known beforehand, so the header can be written
+     * immediately instead of buffering the entries.
+     * Exactly <code>size</code> field name and value pairs must be
+     * written before {@link #writeEndObject}.  A negative size means
+     * the count is not known.
+     */
+    public void writeStartObject(int size) throws IOException, JsonGenerationException {
+        _outputContext = new MapOutputContext(_outputContext, size);
     }
 
     /**
@@ -434,16 +672,52 @@ public class MessagePackGenerator extends JsonGenerator {
      */
     @Override
     public void writeFieldName(SerializableString name) throws IOException, JsonGenerationException {
-        String nameValue = name.getValue();
-        _outputContext.setCurrentName(nameValue);
-        if (_objectContext != null && _introspectionResults != null) {
-            Integer key = _introspectionResults.getKey(_objectContext, nameValue);
-            if (key != null) {
-                writeNumber(key.longValue());
-                return;
-            }
+        _outputContext.setCurrentName(name.getValue());
+        if (_objectContext == null || _introspectionResults == null) {
+            byte[] bytes = name.asUnquotedUTF8();
+            writeStringHeader(bytes.length);
+            write(bytes, 0, bytes.length);
+            _outputContext.endElement();
+            return;
         }
-        writeString(name);
+        if (name instanceof KeyedName) {
+            byte[] encodedKey = ((KeyedName) name).getEncodedKey();
+            write(encodedKey, 0, encodedKey.length);
+            _outputContext.endElement();
+            return;
+        }
+        boolean binAndStr8 = isEnabled(Feature.WRITE_BIN_AND_STR8);
+        if (_encodedNamesType != _objectContext || _encodedNamesBinAndStr8 != binAndStr8) {
+            _encodedNames = _introspectionResults.getEncodedNames(_objectContext, binAndStr8);
+            _encodedNamesType = _objectContext;
+            _encodedNamesBinAndStr8 = binAndStr8;
+        }
+        byte[] encodedName = _encodedNames.get(name);
+        if (encodedName == null) {
+            encodedName = encodeFieldName(name);
+            _encodedNames = _introspectionResults.addEncodedName(_objectContext, binAndStr8, name, encodedName);
+        }
+        write(encodedName, 0, encodedName.length);
+        _outputContext.endElement();
+    }
+
+    // Encodes into the buffer and copies the result out.  The initial
+    // ensure keeps the buffer from being flushed in between.
+    private byte[] encodeFieldName(SerializableString name) throws IOException {
+        Integer key = _introspectionResults.getKey(_objectContext, name.getValue());
+        byte[] bytes = key == null ? name.asUnquotedUTF8() : null;
+        ensure(bytes == null ? 9 : MAX_HEADER + bytes.length);
+        int start = _bufferLength;
+        if (key != null) {
+            writeInteger(key.longValue());
+        } else {
+            writeStringHeader(bytes.length);
+            System.arraycopy(bytes, 0, _buffer, _bufferLength, bytes.length);
+            _bufferLength += bytes.length;
+        }
+        byte[] encodedName = Arrays.copyOfRange(_buffer, start, _bufferLength);
+        _bufferLength = start;
+        return encodedName;
     }
 
     /**
@@ -455,15 +729,21 @@ public class MessagePackGenerator extends JsonGenerator {
      */
     @Override
     public void writeString(String text) throws IOException, JsonGenerationException {
-        if (_objectContext != null && _introspectionResults != null && _objectContext.isEnumType()) {
-            Integer enumInt = _introspectionResults.getEnum(_objectContext, text);
-            if (enumInt != null) {
-                writeNumber(enumInt.longValue());
-                return;
-            }
+        int length = text.length();
+        if (length <= SHORT_STRING) {
+            writeShortString(text, length);
+            return;
         }
-        byte[] bytes = text.getBytes("UTF-8");
-        writeUTF8String(bytes, 0, bytes.length);
+        writeStringHeader(utf8Length(text));
+        for (int i = 0; i < length; ) {
+            int end = chunkEnd(i, length);
+            if (end < length && Character.isHighSurrogate(text.charAt(end - 1)))
+                end--;
+            ensure(3*(end - i));
+            _bufferLength = encode(text, i, end, _bufferLength);
+            i = end;
+        }
+        _outputContext.endElement();
     }
 
     /**
@@ -475,7 +755,146 @@ public class MessagePackGenerator extends JsonGenerator {
      */
     @Override
     public void writeString(char[] text, int offset, int len) throws IOException, JsonGenerationException {
-        writeString(new String(text, offset, len));
+        if (len <= SHORT_STRING) {
+            writeShortString(text, offset, len);
+            return;
+        }
+        writeStringHeader(utf8Length(text, offset, offset + len));
+        int limit = offset + len;
+        for (int i = offset; i < limit; ) {
+            int end = chunkEnd(i, limit);
+            if (end < limit && Character.isHighSurrogate(text[end - 1]))
+                end--;
+            ensure(3*(end - i));
+            _bufferLength = encode(text, i, end, _bufferLength);
+            i = end;
+        }
+        _outputContext.endElement();
+    }
+
+    private static int chunkEnd(int start, int limit) {
+        return limit - start > TRANSFER_SIZE/3 ? start + TRANSFER_SIZE/3 : limit;
+    }
+
+    // Strings of up to SHORT_STRING chars are encoded directly after
+    // a header chosen for the worst case of three bytes per char.  If
+    // the actual length needs a shorter header, the encoded bytes are
+    // moved.  SHORT_STRING keeps the worst case below 0x10000.
+    private void writeShortString(String text, int length) throws IOException {
+        int headerLength = stringHeaderLength(3*length);
+        ensure(headerLength + 3*length);
+        int start = _bufferLength + headerLength;
+        finishShortString(headerLength, encode(text, 0, length, start) - start);
+    }
+
+    private void writeShortString(char[] text, int offset, int length) throws IOException {
+        int headerLength = stringHeaderLength(3*length);
+        ensure(headerLength + 3*length);
+        int start = _bufferLength + headerLength;
+        finishShortString(headerLength, encode(text, offset, offset + length, start) - start);
+    }
+
+    private void finishShortString(int headerLength, int utf8Length) throws IOException {
+        int actualHeaderLength = stringHeaderLength(utf8Length);
+        if (actualHeaderLength != headerLength)
+            System.arraycopy(_buffer, _bufferLength + headerLength, _buffer, _bufferLength + actualHeaderLength, utf8Length);
+        writeStringHeader(utf8Length);
+        _bufferLength += utf8Length;
+        _outputContext.endElement();
+    }
+
+    // Encodes the chars from start to end into _buffer at position,
+    // returning the position after the last byte.  Unpaired
+    // surrogates are encoded as '?', as String.getBytes does.
+    private int encode(String text, int start, int end, int position) {
+        byte[] buffer = _buffer;
+        int i = start;
+        for (char c; i < end && (c = text.charAt(i)) < 0x80; i++)
+            buffer[position++] = (byte) c;
+        while (i < end) {
+            char c = text.charAt(i++);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (Character.isHighSurrogate(c) && i < end && Character.isLowSurrogate(text.charAt(i))) {
+                position = encode(Character.toCodePoint(c, text.charAt(i++)), buffer, position);
+            } else {
+                position = encode(c, buffer, position);
+            }
+        }
+        return position;
+    }
+
+    private int encode(char[] text, int start, int end, int position) {
+        byte[] buffer = _buffer;
+        int i = start;
+        for (char c; i < end && (c = text[i]) < 0x80; i++)
+            buffer[position++] = (byte) c;
+        while (i < end) {
+            char c = text[i++];
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (Character.isHighSurrogate(c) && i < end && Character.isLowSurrogate(text[i])) {
+                position = encode(Character.toCodePoint(c, text[i++]), buffer, position);
+            } else {
+                position = encode(c, buffer, position);
+            }
+        }
+        return position;
+    }
+
+    private static int encode(int codePoint, byte[] buffer, int position) {
+        if (codePoint < 0x800) {
+            buffer[position++] = (byte) (0xc0 | (codePoint>>6));
+        } else if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+            buffer[position++] = (byte) '?';
+            return position;
+        } else if (codePoint < 0x10000) {
+            buffer[position++] = (byte) (0xe0 | (codePoint>>12));
+            buffer[position++] = (byte) (0x80 | ((codePoint>>6) & 0x3f));
+        } else {
+            buffer[position++] = (byte) (0xf0 | (codePoint>>18));
+            buffer[position++] = (byte) (0x80 | ((codePoint>>12) & 0x3f));
+            buffer[position++] = (byte) (0x80 | ((codePoint>>6) & 0x3f));
+        }
+        buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+        return position;
+    }
+
+    private static int utf8Length(int codePoint) {
+        if (codePoint < 0x80)
+            return 1;
+        if (codePoint < 0x800)
+            return 2;
+        if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)
+            return 1;
+        if (codePoint < 0x10000)
+            return 3;
+        return 4;
+    }
+
+    private static int utf8Length(String text) {
+        int length = text.length();
+        int utf8Length = 0;
+        for (int i = 0; i < length; ) {
+            char c = text.charAt(i++);
+            if (Character.isHighSurrogate(c) && i < length && Character.isLowSurrogate(text.charAt(i)))
+                utf8Length += utf8Length(Character.toCodePoint(c, text.charAt(i++)));
+            else
+                utf8Length += utf8Length(c);
+        }
+        return utf8Length;
+    }
+
+    private static int utf8Length(char[] text, int start, int end) {
+        int utf8Length = 0;
+        for (int i = start; i < end; ) {
+            char c = text[i++];
+            if (Character.isHighSurrogate(c) && i < end && Character.isLowSurrogate(text[i]))
+                utf8Length += utf8Length(Character.toCodePoint(c, text[i++]));
+            else
+                utf8Length += utf8Length(c);
+        }
+        return utf8Length;
     }
 
     /**
@@ -489,13 +908,6 @@ public class MessagePackGenerator extends JsonGenerator {
      * if possible.
      */
     public void writeString(SerializableString text) throws IOException, JsonGenerationException {
-        if (_objectContext != null && _introspectionResults != null && _objectContext.isEnumType()) {
-            Integer enumInt = _introspectionResults.getEnum(_objectContext, text.toString());
-            if (enumInt != null) {
-                writeNumber(enumInt.longValue());
-                return;
-            }
-        }
         byte[] bytes = text.asUnquotedUTF8();
         writeUTF8String(bytes, 0, bytes.length);
     }
@@ -543,7 +955,9 @@ public class MessagePackGenerator extends JsonGenerator {
      */
     @Override
     public void writeUTF8String(byte[] text, int offset, int length) throws IOException, JsonGenerationException {
-        writeBinary(null, text, offset, length);
+        writeStringHeader(length);
+        write(text, offset, length);
+        _outputContext.endElement();
     }
 
     /**
@@ -660,16 +1074,8 @@ public class MessagePackGenerator extends JsonGenerator {
      */
     @Override
     public void writeBinary(Base64Variant b64variant, byte[] data, int offset, int len) throws IOException, JsonGenerationException {
-        if (len < 32) {
-            _outputContext.i8(0xa0 | len);
-        } else if (len < 0x10000) {
-            _outputContext.i8(0xda);
-            _outputContext.i16(len);
-        } else {
-            _outputContext.i8(0xdb);
-            _outputContext.i32(len);
-        }
-        _outputContext.out().write(data, offset, len);
+        writeBinaryHeader(len);
+        write(data, offset, len);
         _outputContext.endElement();
     }
 
@@ -697,30 +1103,98 @@ public class MessagePackGenerator extends JsonGenerator {
     @Override
     public int writeBinary(Base64Variant b64variant, InputStream data, int dataLength) throws IOException, JsonGenerationException {
         if (dataLength < 0)
-            throw new UnsupportedOperationException();
-        byte[] buffer;
-        if (dataLength < 32) {
-            _outputContext.i8(0xa0 | dataLength);
-            buffer = new byte[dataLength];
-        } else if (dataLength < 0x10000) {
-            _outputContext.i8(0xda);
-            _outputContext.i16(dataLength);
-            buffer = new byte[256];
-        } else {
-            _outputContext.i8(0xdb);
-            _outputContext.i32(dataLength);
-            buffer = new byte[1024];
-        }
-        int total;
-        for (total = 0; total < dataLength; ) {
-            int count = data.read(buffer);
-            _outputContext.out().write(buffer, 0, count);
+            return stageBinary(data);
+        return copyBinary(data, dataLength);
+    }
+
+    private int copyBinary(InputStream data, int dataLength) throws IOException, JsonGenerationException {
+        writeBinaryHeader(dataLength);
+        int total = 0;
+        while (total < dataLength) {
+            ensure(Math.min(dataLength - total, TRANSFER_SIZE));
+            int count = data.read(_buffer, _bufferLength, Math.min(_buffer.length - _bufferLength, dataLength - total));
+            if (count < 0)
+                throw new JsonGenerationException("Too few bytes available: "+total+" instead of "+dataLength);
+            _bufferLength += count;
             total += count;
         }
         _outputContext.endElement();
         return total;
     }
 
+    // Binary data of unknown length is staged in a chain of pooled
+    // chunks, and in a temporary file beyond SPILL_THRESHOLD bytes,
+    // so that the header can be written before the data.  The spill
+    // only bounds memory at the root or in containers of known size.
+    // Inside a container of unknown size the output is held in
+    // _buffer until the container ends, so the file is read back into
+    // it.
+    private int stageBinary(InputStream data) throws IOException, JsonGenerationException {
+        byte[][] chunks = new byte[SPILL_THRESHOLD/CHUNK_SIZE][];
+        try {
+            int total = 0;
+            while (total < SPILL_THRESHOLD) {
+                int index = total/CHUNK_SIZE;
+                if (chunks[index] == null)
+                    chunks[index] = BufferPool.allocate(CHUNK_SIZE);
+                int offset = total%CHUNK_SIZE;
+                int count = data.read(chunks[index], offset, CHUNK_SIZE - offset);
+                if (count < 0)
+                    return writeStagedBinary(chunks, total);
+                total += count;
+            }
+            // data of exactly SPILL_THRESHOLD bytes is not spilled
+            int next = data.read();
+            if (next < 0)
+                return writeStagedBinary(chunks, total);
+            return spillBinary(chunks, next, data);
+        } finally {
+            for (byte[] chunk : chunks)
+                BufferPool.release(chunk);
+        }
+    }
+
+    private int writeStagedBinary(byte[][] chunks, int total) throws IOException, JsonGenerationException {
+        writeBinaryHeader(total);
+        for (int i = 0; i < total; i += CHUNK_SIZE)
+            write(chunks[i/CHUNK_SIZE], 0, Math.min(CHUNK_SIZE, total - i));
+        _outputContext.endElement();
+        return total;
+    }
+
+    private int spillBinary(byte[][] chunks, int next, InputStream data) throws IOException, JsonGenerationException {
+        File file = File.createTempFile("msgpack", ".bin");
+        try {
+            long total = 0;
+            OutputStream out = new FileOutputStream(file);
+            try {
+                for (byte[] chunk : chunks) {
+                    out.write(chunk, 0, CHUNK_SIZE);
+                    total += CHUNK_SIZE;
+                }
+                out.write(next);
+                total++;
+                byte[] buffer = chunks[0];
+                for (int count; (count = data.read(buffer, 0, CHUNK_SIZE)) >= 0; ) {
+                    out.write(buffer, 0, count);
+                    total += count;
+                    if (total > Integer.MAX_VALUE)
+                        throw new JsonGenerationException("Binary data too long: "+total);
+                }
+            } finally {
+                out.close();
+            }
+            InputStream in = new FileInputStream(file);
+            try {
+                return copyBinary(in, (int) total);
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
     /**
      * Method for outputting given value as Json number.
      * Can be called in any context where a value is expected
@@ -742,38 +1216,58 @@ public class MessagePackGenerator extends JsonGenerator {
      */
     @Override
     public void writeNumber(long v) throws IOException, JsonGenerationException {
+        writeInteger(v);
+        _outputContext.endElement();
+    }
+
+    private void writeInteger(long v) throws IOException {
+        ensure(9);
+        _bufferLength = encodeInteger(v, _buffer, _bufferLength);
+    }
+
+    // Encodes an integer in its shortest form at offset, where there
+    // must be room for 9 bytes, and returns the offset after it.
+    // Also used for the keys of KeyedNames.
+    static int encodeInteger(long v, byte[] buffer, int offset) {
         if (v >= -32 && v < 128) {
-            _outputContext.i8((int) v);
-        } else if (v > 0) {
+            buffer[offset] = (byte) v;
+            return offset + 1;
+        }
+        int tag;
+        int length;
+        if (v > 0) {
             if (v < 256) {
-                _outputContext.i8(0xcc);
-                _outputContext.i8((int) v);
+                tag = 0xcc;
+                length = 1;
             } else if (v < 0x10000) {
-                _outputContext.i8(0xcd);
-                _outputContext.i16((int) v);
+                tag = 0xcd;
+                length = 2;
             } else if (v < 0x100000000L) {
-                _outputContext.i8(0xce);
-                _outputContext.i32((int) v);
+                tag = 0xce;
+                length = 4;
             } else {
-                _outputContext.i8(0xcf);
-                _outputContext.i64(v);
+                tag = 0xcf;
+                length = 8;
             }
         } else {
             if (v >= -128) {
-                _outputContext.i8(0xd0);
-                _outputContext.i8((int) v);
+                tag = 0xd0;
+                length = 1;
             } else if (v >= -0x8000) {
-                _outputContext.i8(0xd1);
-                _outputContext.i16((int) v);
+                tag = 0xd1;
+                length = 2;
             } else if (v >= -0x80000000) {
-                _outputContext.i8(0xd2);
-                _outputContext.i32((int) v);
+                tag = 0xd2;
+                length = 4;
             } else {
-                _outputContext.i8(0xd3);
-                _outputContext.i64(v);
+                tag = 0xd3;
+                length = 8;
             }
         }
-        _outputContext.endElement();
+        buffer[offset] = (byte) tag;
+        for (int i = length; i > 0; i--, v >>= 8)
+            buffer[offset + i] = (byte) v;
+        return offset + length + 1;
     }
 
     /**
@@ -804,8 +1298,7 @@ public class MessagePackGenerator extends JsonGenerator {
      */
     @Override
     public void writeNumber(double d) throws IOException, JsonGenerationException {
-        _outputContext.i8(0xcb);
-        _outputContext.i64(Double.doubleToLongBits(d));
+        writeTag64(0xcb, Double.doubleToLongBits(d));
         _outputContext.endElement();
     }
 
@@ -818,8 +1311,7 @@ public class MessagePackGenerator extends JsonGenerator {
      */
     @Override
     public void writeNumber(float f) throws IOException, JsonGenerationException {
-        _outputContext.i8(0xca);
-        _outputContext.i32(Float.floatToIntBits(f));
+        writeTag32(0xca, Float.floatToIntBits(f));
         _outputContext.endElement();
     }
 
@@ -873,7 +1365,7 @@ public class MessagePackGenerator extends JsonGenerator {
      */
     @Override
     public void writeBoolean(boolean state) throws IOException, JsonGenerationException {
-        _outputContext.i8(state ? 0xc3 : 0xc2);
+        writeTag(state ? 0xc3 : 0xc2);
         _outputContext.endElement();
     }
 
@@ -886,7 +1378,7 @@ public class MessagePackGenerator extends JsonGenerator {
      */
     @Override
     public void writeNull() throws IOException, JsonGenerationException {
-        _outputContext.i8(0xc0);
+        writeTag(0xc0);
         _outputContext.endElement();
     }
 
@@ -987,9 +1479,14 @@ public class MessagePackGenerator extends JsonGenerator {
         case VALUE_NULL:
             writeNull();
             break;
-        case VALUE_EMBEDDED_OBJECT:
-            writeObject(jp.getEmbeddedObject());
+        case VALUE_EMBEDDED_OBJECT: {
+            Object embeddedObject = jp.getEmbeddedObject();
+            if (embeddedObject instanceof byte[])
+                writeBinary((byte[]) embeddedObject);
+            else
+                writeObject(embeddedObject);
             break;
+        }
         default:
             throw new IllegalStateException();
         }
@@ -1072,6 +1569,8 @@ public class MessagePackGenerator extends JsonGenerator {
      */
     @Override
     public void flush() throws IOException {
+        if (_bufferDepth == 0)
+            flushBuffer();
         _outputStream.flush();
     }
 
@@ -1100,6 +1599,13 @@ public class MessagePackGenerator extends JsonGenerator {
     public void close() throws IOException {
         if (!_closed) {
             _closed = true;
+            try {
+                if (_bufferDepth == 0)
+                    flushBuffer();
+            } finally {
+                BufferPool.release(_buffer);
+                _buffer = null;
+            }
             if (_ioContext.isResourceManaged())
                 _outputStream.close();
             else
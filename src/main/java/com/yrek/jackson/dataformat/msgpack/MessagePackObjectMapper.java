@@ -4,23 +4,40 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
 
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.FormatSchema;
 import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.PrettyPrinter;
 import com.fasterxml.jackson.core.Version;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.core.util.ByteArrayBuilder;
 import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.InjectableValues;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.ser.FilterProvider;
 
 public class MessagePackObjectMapper extends ObjectMapper {
     private static final long serialVersionUID = 0L;
 
+    private transient volatile IntrospectionResults _deserializationResults;
+    private transient volatile IntrospectionResults _serializationResults;
+
     public MessagePackObjectMapper() {
         this(new MessagePackFactory());
     }
@@ -28,6 +45,7 @@ public class MessagePackObjectMapper extends ObjectMapper {
     public MessagePackObjectMapper(MessagePackFactory messagePackFactory) {
         super(messagePackFactory);
         _serializerFactory = _serializerFactory.withSerializerModifier(new MessagePackBeanSerializerModifier());
+        _deserializationContext = _deserializationContext.with(_deserializationContext.getFactory().withDeserializerModifier(new MessagePackBeanDeserializerModifier()));
     }
 
     @Override
@@ -41,18 +59,34 @@ public class MessagePackObjectMapper extends ObjectMapper {
     @Override
     protected Object _readValue(DeserializationConfig cfg, JsonParser jp, JavaType valueType) throws IOException, JsonParseException, JsonMappingException {
         if (jp instanceof MessagePackParser)
-            ((MessagePackParser) jp).setObjectContext(valueType, new IntrospectionResults(cfg));
+            ((MessagePackParser) jp).setObjectContext(valueType, getIntrospectionResults(cfg));
         return super._readValue(cfg, jp, valueType);
     }
     
     @Override
     protected Object _readMapAndClose(JsonParser jp, JavaType valueType) throws IOException, JsonParseException, JsonMappingException {
-        //... ought to cache the annotation introspection results in MessagePackObjectMapper
         if (jp instanceof MessagePackParser)
-            ((MessagePackParser) jp).setObjectContext(valueType, new IntrospectionResults(getDeserializationConfig()));
+            ((MessagePackParser) jp).setObjectContext(valueType, getIntrospectionResults(getDeserializationConfig()));
         return super._readMapAndClose(jp, valueType);
     }
 
+    /**
+     * Method to deserialize content from the remaining bytes of a
+     * ByteBuffer.
+     */
+    public <T> T readValue(ByteBuffer src, Class<T> valueType) throws IOException, JsonParseException, JsonMappingException {
+        return readValue(src, _typeFactory.constructType(valueType));
+    }
+
+    /**
+     * Method to deserialize content from the remaining bytes of a
+     * ByteBuffer.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T readValue(ByteBuffer src, JavaType valueType) throws IOException, JsonParseException, JsonMappingException {
+        return (T) _readMapAndClose(((MessagePackFactory) _jsonFactory).createParser(src), valueType);
+    }
+
     /**
      * Method that can be used to serialize any Java value as
      * JSON output, using provided {@link JsonGenerator}.
@@ -140,9 +174,192 @@ public class MessagePackObjectMapper extends ObjectMapper {
         return result;
     }
 
+    /**
+     * Method for writing a sequence of top-level values to the
+     * output stream provided, using a single generator.
+     * Closing the returned writer closes the generator.
+     */
+    public MessagePackSequenceWriter writeValues(OutputStream out) throws IOException {
+        return new MessagePackSequenceWriter(this, (MessagePackGenerator) _jsonFactory.createGenerator(out, JsonEncoding.UTF8));
+    }
+
+    /**
+     * Method for writing a sequence of top-level values to the
+     * file provided, using a single generator.
+     * Closing the returned writer closes the generator and the file.
+     */
+    public MessagePackSequenceWriter writeValues(File resultFile) throws IOException {
+        return new MessagePackSequenceWriter(this, (MessagePackGenerator) _jsonFactory.createGenerator(resultFile, JsonEncoding.UTF8));
+    }
+
+    /**
+     * The <code>writer</code> methods return {@link MessagePackObjectWriter}s,
+     * which write keys and sizes as this mapper does.
+     */
+    @Override
+    public ObjectWriter writer() {
+        return new MessagePackObjectWriter(this, super.writer());
+    }
+
+    @Override
+    public ObjectWriter writer(SerializationFeature feature) {
+        return new MessagePackObjectWriter(this, super.writer(feature));
+    }
+
+    @Override
+    public ObjectWriter writer(SerializationFeature first, SerializationFeature... other) {
+        return new MessagePackObjectWriter(this, super.writer(first, other));
+    }
+
+    @Override
+    public ObjectWriter writer(DateFormat df) {
+        return new MessagePackObjectWriter(this, super.writer(df));
+    }
+
+    @Override
+    public ObjectWriter writerWithView(Class<?> serializationView) {
+        return new MessagePackObjectWriter(this, super.writerWithView(serializationView));
+    }
+
+    @Override
+    public ObjectWriter writerWithType(Class<?> rootType) {
+        return new MessagePackObjectWriter(this, super.writerWithType(rootType));
+    }
+
+    @Override
+    public ObjectWriter writerWithType(TypeReference<?> rootType) {
+        return new MessagePackObjectWriter(this, super.writerWithType(rootType));
+    }
+
+    @Override
+    public ObjectWriter writerWithType(JavaType rootType) {
+        return new MessagePackObjectWriter(this, super.writerWithType(rootType));
+    }
+
+    @Override
+    public ObjectWriter writer(PrettyPrinter pp) {
+        return new MessagePackObjectWriter(this, super.writer(pp));
+    }
+
+    @Override
+    public ObjectWriter writerWithDefaultPrettyPrinter() {
+        return new MessagePackObjectWriter(this, super.writerWithDefaultPrettyPrinter());
+    }
+
+    @Override
+    public ObjectWriter writer(FilterProvider filterProvider) {
+        return new MessagePackObjectWriter(this, super.writer(filterProvider));
+    }
+
+    @Override
+    public ObjectWriter writer(FormatSchema schema) {
+        return new MessagePackObjectWriter(this, super.writer(schema));
+    }
+
+    @Override
+    public ObjectWriter writer(Base64Variant defaultBase64) {
+        return new MessagePackObjectWriter(this, super.writer(defaultBase64));
+    }
+
+    /**
+     * The <code>reader</code> methods return {@link MessagePackObjectReader}s,
+     * which read keys as this mapper does.
+     */
+    @Override
+    public ObjectReader reader() {
+        return new MessagePackObjectReader(this, super.reader());
+    }
+
+    @Override
+    public ObjectReader reader(DeserializationFeature feature) {
+        return new MessagePackObjectReader(this, super.reader(feature));
+    }
+
+    @Override
+    public ObjectReader reader(DeserializationFeature first, DeserializationFeature... other) {
+        return new MessagePackObjectReader(this, super.reader(first, other));
+    }
+
+    @Override
+    public ObjectReader readerForUpdating(Object valueToUpdate) {
+        return new MessagePackObjectReader(this, super.readerForUpdating(valueToUpdate));
+    }
+
+    @Override
+    public ObjectReader reader(JavaType type) {
+        return new MessagePackObjectReader(this, super.reader(type));
+    }
+
+    @Override
+    public ObjectReader reader(Class<?> type) {
+        return new MessagePackObjectReader(this, super.reader(type));
+    }
+
+    @Override
+    public ObjectReader reader(TypeReference<?> type) {
+        return new MessagePackObjectReader(this, super.reader(type));
+    }
+
+    @Override
+    public ObjectReader reader(JsonNodeFactory f) {
+        return new MessagePackObjectReader(this, super.reader(f));
+    }
+
+    @Override
+    public ObjectReader reader(FormatSchema schema) {
+        return new MessagePackObjectReader(this, super.reader(schema));
+    }
+
+    @Override
+    public ObjectReader reader(InjectableValues injectableValues) {
+        return new MessagePackObjectReader(this, super.reader(injectableValues));
+    }
+
+    @Override
+    public ObjectReader readerWithView(Class<?> view) {
+        return new MessagePackObjectReader(this, super.readerWithView(view));
+    }
+
+    @Override
+    public ObjectReader reader(Base64Variant defaultBase64) {
+        return new MessagePackObjectReader(this, super.reader(defaultBase64));
+    }
+
+    void serializeValue(JsonGenerator jgen, Object value) throws IOException, JsonGenerationException {
+        _serializerProvider(getSerializationConfig()).serializeValue(jgen, value);
+    }
+
     private JsonGenerator setRootContext(JsonGenerator jgen, Object value) {
         if (jgen instanceof MessagePackGenerator)
-            ((MessagePackGenerator) jgen).setObjectContext(getSerializationConfig().constructType(value.getClass()), new IntrospectionResults(getSerializationConfig()));
+            ((MessagePackGenerator) jgen).setObjectContext(getSerializationConfig().constructType(value.getClass()), getIntrospectionResults(getSerializationConfig()));
         return jgen;
     }
+
+    /**
+     * Get the annotation introspection results for the configuration,
+     * shared by all readers of this mapper.  The cached results are
+     * replaced when the configuration changes or mix-in annotations
+     * are added.
+     * Configurations other than the mapper's current one get results
+     * of their own.
+     */
+    IntrospectionResults getIntrospectionResults(DeserializationConfig cfg) {
+        IntrospectionResults results = _deserializationResults;
+        if (results != null && results.isCurrent(cfg, _mixInAnnotations))
+            return results;
+        results = new IntrospectionResults(cfg, _mixInAnnotations);
+        if (cfg == getDeserializationConfig())
+            _deserializationResults = results;
+        return results;
+    }
+
+    IntrospectionResults getIntrospectionResults(SerializationConfig cfg) {
+        IntrospectionResults results = _serializationResults;
+        if (results != null && results.isCurrent(cfg, _mixInAnnotations))
+            return results;
+        results = new IntrospectionResults(cfg, _mixInAnnotations);
+        if (cfg == getSerializationConfig())
+            _serializationResults = results;
+        return results;
+    }
 }
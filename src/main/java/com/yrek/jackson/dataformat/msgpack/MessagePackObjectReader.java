@@ -0,0 +1,101 @@
+package com.yrek.jackson.dataformat.msgpack;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.FormatSchema;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.InjectableValues;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.deser.DataFormatReaders;
+
+/**
+ * Reader returned by the <code>reader</code> methods of
+ * {@link MessagePackObjectMapper}, which sets up MessagePack parsers
+ * the way the mapper does.  The introspection results for the
+ * reader's configuration are resolved when it is constructed, so
+ * that, like any ObjectReader, it can be shared between threads.
+ */
+public class MessagePackObjectReader extends ObjectReader {
+    private static final long serialVersionUID = 0L;
+
+    private final MessagePackObjectMapper _mapper;
+    private final IntrospectionResults _introspectionResults;
+
+    MessagePackObjectReader(MessagePackObjectMapper mapper, ObjectReader base) {
+        super(base, base.getConfig());
+        _mapper = mapper;
+        _introspectionResults = mapper.getIntrospectionResults(_config);
+    }
+
+    private ObjectReader wrap(ObjectReader reader) {
+        if (reader == this || reader instanceof MessagePackObjectReader)
+            return reader;
+        return new MessagePackObjectReader(_mapper, reader);
+    }
+
+    @Override
+    protected ObjectReader _with(DeserializationConfig newConfig) {
+        return wrap(super._with(newConfig));
+    }
+
+    @Override
+    public ObjectReader with(FormatSchema schema) {
+        return wrap(super.with(schema));
+    }
+
+    @Override
+    public ObjectReader with(JsonFactory f) {
+        return wrap(super.with(f));
+    }
+
+    @Override
+    public ObjectReader with(InjectableValues injectableValues) {
+        return wrap(super.with(injectableValues));
+    }
+
+    @Override
+    public ObjectReader withFormatDetection(DataFormatReaders readers) {
+        return wrap(super.withFormatDetection(readers));
+    }
+
+    @Override
+    public ObjectReader withType(JavaType valueType) {
+        return wrap(super.withType(valueType));
+    }
+
+    @Override
+    public ObjectReader withValueToUpdate(Object value) {
+        return wrap(super.withValueToUpdate(value));
+    }
+
+    private JsonParser setRootContext(JsonParser jp, Object valueToUpdate) {
+        JavaType valueType = _valueType;
+        if (valueType == null && valueToUpdate != null)
+            valueType = _config.constructType(valueToUpdate.getClass());
+        if (jp instanceof MessagePackParser && valueType != null)
+            ((MessagePackParser) jp).setObjectContext(valueType, _introspectionResults);
+        return jp;
+    }
+
+    @Override
+    protected Object _bind(JsonParser jp, Object valueToUpdate) throws IOException, JsonParseException, JsonMappingException {
+        return super._bind(setRootContext(jp, valueToUpdate), valueToUpdate);
+    }
+
+    @Override
+    protected Object _bindAndClose(JsonParser jp, Object valueToUpdate) throws IOException, JsonParseException, JsonMappingException {
+        return super._bindAndClose(setRootContext(jp, valueToUpdate), valueToUpdate);
+    }
+
+    @Override
+    protected <T> MappingIterator<T> _bindAndReadValues(JsonParser jp, Object valueToUpdate) throws IOException, JsonProcessingException {
+        return super._bindAndReadValues(setRootContext(jp, valueToUpdate), valueToUpdate);
+    }
+}
@@ -0,0 +1,179 @@
+package com.yrek.jackson.dataformat.msgpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.FormatSchema;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerationException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.PrettyPrinter;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.ser.FilterProvider;
+
+/**
+ * Writer returned by the <code>writer</code> methods of
+ * {@link MessagePackObjectMapper}, which sets up MessagePack
+ * generators the way the mapper does.  The introspection results for
+ * the writer's configuration are resolved when it is constructed, so
+ * that, like any ObjectWriter, it can be shared between threads.
+ */
+public class MessagePackObjectWriter extends ObjectWriter {
+    private static final long serialVersionUID = 0L;
+
+    private final MessagePackObjectMapper _mapper;
+    private final IntrospectionResults _introspectionResults;
+
+    MessagePackObjectWriter(MessagePackObjectMapper mapper, ObjectWriter base) {
+        super(base, base.getConfig());
+        _mapper = mapper;
+        _introspectionResults = mapper.getIntrospectionResults(_config);
+    }
+
+    private ObjectWriter wrap(ObjectWriter writer) {
+        if (writer == this || writer instanceof MessagePackObjectWriter)
+            return writer;
+        return new MessagePackObjectWriter(_mapper, writer);
+    }
+
+    @Override
+    public ObjectWriter with(SerializationFeature feature) {
+        return wrap(super.with(feature));
+    }
+
+    @Override
+    public ObjectWriter with(SerializationFeature first, SerializationFeature... other) {
+        return wrap(super.with(first, other));
+    }
+
+    @Override
+    public ObjectWriter withFeatures(SerializationFeature... features) {
+        return wrap(super.withFeatures(features));
+    }
+
+    @Override
+    public ObjectWriter without(SerializationFeature feature) {
+        return wrap(super.without(feature));
+    }
+
+    @Override
+    public ObjectWriter without(SerializationFeature first, SerializationFeature... other) {
+        return wrap(super.without(first, other));
+    }
+
+    @Override
+    public ObjectWriter withoutFeatures(SerializationFeature... features) {
+        return wrap(super.withoutFeatures(features));
+    }
+
+    @Override
+    public ObjectWriter with(DateFormat df) {
+        return wrap(super.with(df));
+    }
+
+    @Override
+    public ObjectWriter with(FilterProvider filterProvider) {
+        return wrap(super.with(filterProvider));
+    }
+
+    @Override
+    public ObjectWriter with(PrettyPrinter pp) {
+        return wrap(super.with(pp));
+    }
+
+    @Override
+    public ObjectWriter withRootName(String rootName) {
+        return wrap(super.withRootName(rootName));
+    }
+
+    @Override
+    public ObjectWriter withSchema(FormatSchema schema) {
+        return wrap(super.withSchema(schema));
+    }
+
+    @Override
+    public ObjectWriter withType(JavaType rootType) {
+        return wrap(super.withType(rootType));
+    }
+
+    @Override
+    public ObjectWriter withView(Class<?> view) {
+        return wrap(super.withView(view));
+    }
+
+    @Override
+    public ObjectWriter with(Locale l) {
+        return wrap(super.with(l));
+    }
+
+    @Override
+    public ObjectWriter with(TimeZone tz) {
+        return wrap(super.with(tz));
+    }
+
+    @Override
+    public ObjectWriter with(Base64Variant b64variant) {
+        return wrap(super.with(b64variant));
+    }
+
+    private JsonGenerator setRootContext(JsonGenerator jgen, Object value) {
+        JavaType rootType = _rootType;
+        if (rootType == null && value != null)
+            rootType = _config.constructType(value.getClass());
+        if (jgen instanceof MessagePackGenerator && rootType != null)
+            ((MessagePackGenerator) jgen).setObjectContext(rootType, _introspectionResults);
+        return jgen;
+    }
+
+    @Override
+    public void writeValue(JsonGenerator jgen, Object value) throws IOException, JsonGenerationException, JsonMappingException {
+        super.writeValue(setRootContext(jgen, value), value);
+    }
+
+    @Override
+    public void writeValue(File resultFile, Object value) throws IOException, JsonGenerationException, JsonMappingException {
+        _configAndWriteValue(setRootContext(_jsonFactory.createGenerator(resultFile, JsonEncoding.UTF8), value), value);
+    }
+
+    @Override
+    public void writeValue(OutputStream out, Object value) throws IOException, JsonGenerationException, JsonMappingException {
+        _configAndWriteValue(setRootContext(_jsonFactory.createGenerator(out, JsonEncoding.UTF8), value), value);
+    }
+
+    @Override
+    public void writeValue(Writer w, Object value) throws IOException, JsonGenerationException, JsonMappingException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String writeValueAsString(Object value) throws JsonProcessingException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    @SuppressWarnings("resource")
+    public byte[] writeValueAsBytes(Object value) throws JsonProcessingException {
+        ByteArrayBuilder bb = new ByteArrayBuilder(_jsonFactory._getBufferRecycler());
+        try {
+            _configAndWriteValue(setRootContext(_jsonFactory.createGenerator(bb, JsonEncoding.UTF8), value), value);
+        } catch (JsonProcessingException e) {
+            throw e;
+        } catch (IOException e) {
+            throw JsonMappingException.fromUnexpectedIOE(e);
+        }
+        byte[] result = bb.toByteArray();
+        bb.release();
+        return result;
+    }
+}
@@ -5,6 +5,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.Iterator;
 
@@ -19,12 +21,22 @@ import com.fasterxml.jackson.core.ObjectCodec;
 import com.fasterxml.jackson.core.TreeNode;
 import com.fasterxml.jackson.core.Version;
 import com.fasterxml.jackson.core.io.IOContext;
+import com.fasterxml.jackson.core.sym.BytesToNameCanonicalizer;
+import com.fasterxml.jackson.core.sym.Name;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.util.TextBuffer;
 import com.fasterxml.jackson.databind.JavaType;
 
+import com.yrek.jackson.dataformat.util.BufferPool;
+
 public class MessagePackParser extends JsonParser {
     public enum Feature implements MessagePackFeature.Feature {
-        PLACEHOLDER(true),
+        /**
+         * Report values of the bin family, and raws that are bound to
+         * byte[], as {@link JsonToken#VALUE_EMBEDDED_OBJECT}, with
+         * the bytes as the embedded object, instead of as strings.
+         */
+        BINARY_AS_EMBEDDED_OBJECT(false),
             ;
 
         private final boolean _defaultState;
@@ -45,60 +57,178 @@ public class MessagePackParser extends JsonParser {
         FLOAT,
         DOUBLE,
         BYTES,
+        BINARY,
     }
 
-    private class InputContext extends JsonStreamContext {
+    // One context class serves the root, arrays and maps.  Each
+    // context keeps its child, which is reset and reused whenever a
+    // container is entered at the next depth.
+    private final class InputContext extends JsonStreamContext {
+        final InputContext _parent;
+        InputContext _child;
         InputContext _nextInputContext;
+        int _size;
+        JavaType _parentObjectContext;
+        String _currentName;
         ValueType _valueType;
         long _intValue;
         boolean _intValueSigned;
         boolean _boolValue;
         float _floatValue;
         double _doubleValue;
+        // Raw values are a slice of _bytesValue, which is the input
+        // buffer itself unless the value did not fit in it.
         byte[] _bytesValue;
+        int _bytesOffset;
+        int _bytesLength;
+        long _bytesPosition;
         String _stringValue;
+        // The resolved properties of the object type, kept while the
+        // context is reused for the same type.
+        IntrospectionResults _typeInfoResults;
+        JavaType _typeInfoType;
+        IntrospectionResults.TypeInfo _typeInfo;
 
-        InputContext() {
+        InputContext(InputContext parent) {
+            _parent = parent;
             _type = TYPE_ROOT;
             _index = -1;
         }
 
+        void reset(int type, int size) {
+            _type = type;
+            _index = -1;
+            _size = size;
+            _currentName = null;
+            _valueType = null;
+            _bytesValue = null;
+            _stringValue = null;
+            _parentObjectContext = _objectContext;
+            if (_introspectionResults != null && _objectContext != null) {
+                if (_parent.inObject() && _parent.getCurrentName() != null)
+                    _objectContext = _parent.typeInfo().getType(_parent.getCurrentName());
+                else if (_parent.inArray())
+                    _objectContext = _parent.elementType();
+                else if (!_parent.inRoot())
+                    _objectContext = null;
+            }
+        }
+
+        IntrospectionResults.TypeInfo typeInfo() {
+            if (_typeInfoType != _objectContext || _typeInfoResults != _introspectionResults) {
+                _typeInfo = _introspectionResults.getTypeInfo(_objectContext);
+                _typeInfoType = _objectContext;
+                _typeInfoResults = _introspectionResults;
+            }
+            return _typeInfo;
+        }
+
+        // The type of the current element of an array.  Each element
+        // of a tuple has its own type.
+        JavaType elementType() {
+            if (_objectContext.isContainerType())
+                return _objectContext.getContentType();
+            return typeInfo().getTupleType(_index);
+        }
+
         @Override
         public JsonStreamContext getParent() {
-            return null;
+            return _parent;
         }
 
         @Override
         public String getCurrentName() {
-            return null;
+            return _currentName;
         }
 
         JsonToken nextToken() throws IOException, JsonParseException {
-            _index++;
+            if (_bytesValue == UNREAD) {
+                _bytesValue = null;
+                skipBytes(_bytesLength);
+            }
+            switch (_type) {
+            case TYPE_ARRAY:
+                if (_index + 1 >= _size)
+                    return endContainer(JsonToken.END_ARRAY);
+                break;
+            case TYPE_OBJECT:
+                if (_index + 1 >= _size)
+                    return endContainer(JsonToken.END_OBJECT);
+                if ((_index & 1) != 0)
+                    return fieldName();
+                break;
+            }
+            return nextValue();
+        }
+
+        private JsonToken endContainer(JsonToken endToken) {
+            _nextInputContext = _parent;
+            _objectContext = _parentObjectContext;
+            return endToken;
+        }
+
+        private JsonToken startContainer(int type, int size) {
+            InputContext child = _child;
+            if (child == null) {
+                child = new InputContext(this);
+                _child = child;
+            }
+            child.reset(type, size);
+            _nextInputContext = child;
+            return type == TYPE_ARRAY ? JsonToken.START_ARRAY : JsonToken.START_OBJECT;
+        }
+
+        @SuppressWarnings("fallthrough")
+        private JsonToken fieldName() throws IOException, JsonParseException {
+            if (nextValue() == JsonToken.NOT_AVAILABLE)
+                return JsonToken.NOT_AVAILABLE;
+            if (_valueType == null)
+                throw _constructError("Unexpected key type");
+            switch (_valueType) {
+            case BYTES:
+            case BINARY:
+                _stringValue = findName(_bytesValue, _bytesOffset, _bytesLength);
+                _currentName = _stringValue;
+                return JsonToken.FIELD_NAME;
+            case INT:
+                if (_objectContext != null && _introspectionResults != null) {
+                    _stringValue = typeInfo().getName(_intValue);
+                    if (_stringValue != null) {
+                        _currentName = _stringValue;
+                        return JsonToken.FIELD_NAME;
+                    }
+                }
+                /*FALLTHROUGH*/
+            default:
+                throw _constructError("Unexpected key type");
+            }
+        }
+
+        private JsonToken nextValue() throws IOException, JsonParseException {
             _nextInputContext = this;
             _valueType = null;
             _bytesValue = null;
             _stringValue = null;
-            _currentTokenLocation = _currentInputCount;
-            int tokenByte = _inputStream.read();
-            if (tokenByte < 0)
+            if (_nonBlocking && !_endOfInput && !valueAvailable()) {
+                keepRemainingInput(0);
+                return JsonToken.NOT_AVAILABLE;
+            }
+            _index++;
+            if (_inputPtr >= _inputEnd && !loadMore())
                 return null;
-            _currentInputCount++;
+            _currentTokenLocation = _currentInputProcessed + _inputPtr;
+            int tokenByte = _inputBuffer[_inputPtr++] & 0xff;
             if (tokenByte < 0x80 || tokenByte >= 0xe0) {
                 _valueType = ValueType.INT;
                 _intValue = tokenByte >= 0xe0 ? tokenByte - 256 : tokenByte;
-                return intValue();
-            }
-            if ((tokenByte & 0xf0) == 0x80) {
-                _nextInputContext = new MapInputContext(tokenByte & 0xf,this);
-                return JsonToken.START_OBJECT;
-            }
-            if ((tokenByte & 0xf0) == 0x90) {
-                _nextInputContext = new ArrayInputContext(tokenByte & 0xf,this);
-                return JsonToken.START_ARRAY;
+                return JsonToken.VALUE_NUMBER_INT;
             }
+            if ((tokenByte & 0xf0) == 0x80)
+                return startContainer(TYPE_OBJECT, 2*(tokenByte & 0xf));
+            if ((tokenByte & 0xf0) == 0x90)
+                return startContainer(TYPE_ARRAY, tokenByte & 0xf);
             if ((tokenByte & 0xe0) == 0xa0)
-                return bytesValue(tokenByte & 0x1f);
+                return bytesValue(tokenByte & 0x1f, ValueType.BYTES);
             switch (tokenByte) {
             case 0xc0:
                 _valueType = ValueType.NIL;
@@ -119,240 +249,658 @@ public class MessagePackParser extends JsonParser {
                 _valueType = ValueType.DOUBLE;
                 _doubleValue = Double.longBitsToDouble(read64());
                 return JsonToken.VALUE_NUMBER_FLOAT;
+            case 0xc4:
+                return bytesValue(read8(), ValueType.BINARY);
+            case 0xc5:
+                return bytesValue(read16(), ValueType.BINARY);
+            case 0xc6:
+                return bytesValue(read32(), ValueType.BINARY);
             case 0xcc:
                 _valueType = ValueType.INT;
                 _intValue = read8();
                 _intValueSigned = false;
-                return intValue();
+                return JsonToken.VALUE_NUMBER_INT;
             case 0xcd:
                 _valueType = ValueType.INT;
                 _intValue = read16();
                 _intValueSigned = false;
-                return intValue();
+                return JsonToken.VALUE_NUMBER_INT;
             case 0xce:
                 _valueType = ValueType.INT;
-                _intValue = read32();
+                _intValue = read32() & 0xffffffffL;
                 _intValueSigned = false;
-                return intValue();
+                return JsonToken.VALUE_NUMBER_INT;
             case 0xcf:
                 _valueType = ValueType.INT;
                 _intValue = read64();
                 _intValueSigned = false;
-                return intValue();
+                return JsonToken.VALUE_NUMBER_INT;
             case 0xd0:
                 _valueType = ValueType.INT;
-                _intValue = read8();
+                _intValue = (byte) read8();
                 _intValueSigned = true;
-                return intValue();
+                return JsonToken.VALUE_NUMBER_INT;
             case 0xd1:
                 _valueType = ValueType.INT;
                 _intValue = read16();
                 _intValueSigned = true;
                 if (_intValue > Short.MAX_VALUE)
                     _intValue = Short.MIN_VALUE + _intValue - Short.MAX_VALUE - 1;
-                return intValue();
+                return JsonToken.VALUE_NUMBER_INT;
             case 0xd2:
                 _valueType = ValueType.INT;
                 _intValue = read32();
                 _intValueSigned = true;
                 if (_intValue > Integer.MAX_VALUE)
                     _intValue = Integer.MIN_VALUE + _intValue - Integer.MAX_VALUE - 1;
-                return intValue();
+                return JsonToken.VALUE_NUMBER_INT;
             case 0xd3:
                 _valueType = ValueType.INT;
                 _intValue = read64();
                 _intValueSigned = true;
-                return intValue();
+                return JsonToken.VALUE_NUMBER_INT;
+            case 0xd9:
+                return bytesValue(read8(), ValueType.BYTES);
             case 0xda:
-                return bytesValue(read16());
+                return bytesValue(read16(), ValueType.BYTES);
             case 0xdb:
-                return bytesValue(read32());
+                return bytesValue(read32(), ValueType.BYTES);
             case 0xdc:
-                _nextInputContext = new ArrayInputContext(read16(),this);
-                return JsonToken.START_ARRAY;
+                return startContainer(TYPE_ARRAY, read16());
             case 0xdd: {
                 int n = read32();
                 if (n < 0)
                     throw _constructError("Array too big:"+n);
-                _nextInputContext = new ArrayInputContext(n,this);
-                return JsonToken.START_ARRAY;
+                return startContainer(TYPE_ARRAY, n);
             }
             case 0xde:
-                _nextInputContext = new MapInputContext(read16(),this);
-                return JsonToken.START_OBJECT;
+                return startContainer(TYPE_OBJECT, 2*read16());
             case 0xdf: {
                 int n = read32();
                 if (n < 0 || 2*n < 0)
                     throw _constructError("Map too big:"+n);
-                _nextInputContext = new MapInputContext(n,this);
-                return JsonToken.START_OBJECT;
+                return startContainer(TYPE_OBJECT, 2*n);
             }
             }
             throw _constructError("Unrecognized byte:"+tokenByte);
         }
 
-        private JsonToken intValue() {
-            if (_objectContext != null && _introspectionResults != null) {
-                if (_objectContext.isEnumType()) {
-                    _stringValue = _introspectionResults.getEnum(_objectContext, (int) _intValue);
-                    if (_stringValue != null)
-                        return JsonToken.VALUE_STRING;
-                }
-                if (_inputContext.getCurrentName() != null) {
-                    JavaType fieldContext = _introspectionResults.getType(_objectContext, _inputContext.getCurrentName());
-                    if (fieldContext != null && fieldContext.isEnumType()) {
-                        _stringValue = _introspectionResults.getEnum(fieldContext, (int) _intValue);
-                        if (_stringValue != null)
-                            return JsonToken.VALUE_STRING;
-                    }
-                }
-            }
-            return JsonToken.VALUE_NUMBER_INT;
-        }
-
-        private JsonToken bytesValue(int size) throws IOException, JsonParseException {
+        private JsonToken bytesValue(int size, ValueType valueType) throws IOException, JsonParseException {
             if (size < 0)
                 throw _constructError("Byte array too big:"+size);
-            _valueType = ValueType.BYTES;
-            _bytesValue = new byte[size];
-            _currentInputCount += _inputStream.read(_bytesValue);
+            _valueType = valueType;
+            _bytesLength = size;
+            _bytesPosition = _currentInputProcessed + _inputPtr;
+            if (size <= _inputEnd - _inputPtr || (_inputStream != null && size <= _inputBuffer.length)) {
+                ensureAvailable(size);
+                _bytesValue = _inputBuffer;
+                _bytesOffset = _inputPtr;
+                _inputPtr += size;
+            } else if (_inputStream != null) {
+                // Values larger than the buffer are left in the input
+                // until they are asked for.
+                _bytesValue = UNREAD;
+                _bytesOffset = 0;
+            } else {
+                throw _constructError("Unexpected EOF");
+            }
+            if (isEnabled(Feature.BINARY_AS_EMBEDDED_OBJECT) && (valueType == ValueType.BINARY || boundToBytes()))
+                return JsonToken.VALUE_EMBEDDED_OBJECT;
             return JsonToken.VALUE_STRING;
         }
 
+        private boolean boundToBytes() {
+            if (_objectContext == null || _introspectionResults == null)
+                return false;
+            JavaType javaType;
+            if (inRoot())
+                javaType = _objectContext;
+            else if (inArray())
+                javaType = elementType();
+            else if ((_index & 1) == 0)
+                return false; // field name
+            else if (_objectContext.isMapLikeType())
+                javaType = _objectContext.getContentType();
+            else
+                javaType = _currentName == null ? null : typeInfo().getType(_currentName);
+            return javaType != null && javaType.getRawClass() == byte[].class;
+        }
+
         InputContext nextInputContext() {
             return _nextInputContext;
         }
 
-        private int read8() throws IOException, JsonParseException {
-            int b = _inputStream.read();
-            if (b < 0)
-                throw _constructError("Unexpected EOF");
-            _currentInputCount++;
-            return b;
+        // Skips the remaining entries of a container without
+        // decoding them and returns its end token, or NOT_AVAILABLE
+        // if a non-blocking parser runs out of input first.
+        JsonToken skipChildren() throws IOException, JsonParseException {
+            _skipValues = (long) _size - _index - 1;
+            _index = _size - 1;
+            if (!skipValues()) {
+                _nextInputContext = this;
+                return JsonToken.NOT_AVAILABLE;
+            }
+            return nextToken();
         }
+    }
+
+    private IOContext _ioContext;
+    private ObjectCodec _objectCodec;
+    private EnumSet<MessagePackFactory.Feature> _msgPackFeatures;
+    private EnumSet<Feature> _parserFeatures;
+    private static final int INPUT_BUFFER_SIZE = 8192;
+    // Largest array most VMs allocate.
+    private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+    private static final byte[] UNREAD = new byte[0];
+    private static final byte[] NO_BYTES = new byte[0];
+    private int _maxValueLength = Integer.MAX_VALUE;
 
-        private int read16() throws IOException, JsonParseException {
-            return (read8()<<8) | read8();
+    private InputStream _inputStream;
+
+    // Input is decoded from _inputBuffer between _inputPtr and
+    // _inputEnd.  Parsers over a byte array use the array itself;
+    // parsers over a stream refill a pooled buffer.
+    private byte[] _inputBuffer;
+    private int _inputPtr;
+    private int _inputEnd;
+    private long _currentInputProcessed;
+
+    // Non-blocking parsers decode fed input in place.  An incomplete
+    // value left at the end of the input is moved to _feedBuffer and
+    // the following input is appended to it.
+    private final boolean _nonBlocking;
+
+    // For parsers over a ByteBuffer, raw values are sliced from
+    // _inputByteBuffer.
+    private ByteBuffer _inputByteBuffer;
+    private int _inputByteBufferStart;
+    private boolean _endOfInput;
+    private byte[] _feedBuffer;
+
+    // Values, and bytes of the value being skipped, still to be
+    // skipped by skipChildren.  Only a non-blocking parser that runs
+    // out of input leaves any, and skips them on the next nextToken.
+    private long _skipValues;
+    private long _skipBytes;
+
+    private boolean _closed;
+    private InputContext _inputContext;
+    private JavaType _objectContext;
+    private IntrospectionResults _introspectionResults;
+    private JsonToken _currentToken;
+    private JsonToken _lastClearedToken;
+    private long _currentTokenLocation;
+    private TextBuffer _textBuffer;
+    private boolean _textDecoded;
+
+    // Field names are canonicalized by their raw bytes, packed into
+    // big-endian quads.  Null if canonicalization is disabled.
+    private static final int MAX_SYMBOL_LENGTH = 256;
+    private final BytesToNameCanonicalizer _symbols;
+    private int[] _quadBuffer;
+
+    public MessagePackParser(IOContext ctxt, ObjectCodec codec, EnumSet<MessagePackFactory.Feature> msgPackFeatures, EnumSet<Feature> parserFeatures, BytesToNameCanonicalizer symbols, InputStream in) {
+        _ioContext = ctxt;
+        _objectCodec = codec;
+        _msgPackFeatures = msgPackFeatures;
+        _parserFeatures = parserFeatures;
+        _symbols = symbols;
+        _inputStream = in;
+        _inputContext = new InputContext(null);
+        _inputBuffer = BufferPool.allocate(INPUT_BUFFER_SIZE);
+        _nonBlocking = false;
+    }
+
+    public MessagePackParser(IOContext ctxt, ObjectCodec codec, EnumSet<MessagePackFactory.Feature> msgPackFeatures, EnumSet<Feature> parserFeatures, BytesToNameCanonicalizer symbols, byte[] data, int offset, int length) {
+        _ioContext = ctxt;
+        _objectCodec = codec;
+        _msgPackFeatures = msgPackFeatures;
+        _parserFeatures = parserFeatures;
+        _symbols = symbols;
+        _inputContext = new InputContext(null);
+        _inputBuffer = data;
+        _inputPtr = offset;
+        _inputEnd = offset + length;
+        _currentInputProcessed = -offset;
+        _nonBlocking = false;
+    }
+
+    /**
+     * Parser over the remaining bytes of a ByteBuffer.  Buffers with
+     * an accessible array are decoded in place.  Direct buffers,
+     * including mapped files, are copied into the parser's buffer in
+     * bulk.  The position of the given buffer is not changed.
+     */
+    public MessagePackParser(IOContext ctxt, ObjectCodec codec, EnumSet<MessagePackFactory.Feature> msgPackFeatures, EnumSet<Feature> parserFeatures, BytesToNameCanonicalizer symbols, ByteBuffer data) {
+        _ioContext = ctxt;
+        _objectCodec = codec;
+        _msgPackFeatures = msgPackFeatures;
+        _parserFeatures = parserFeatures;
+        _symbols = symbols;
+        _inputContext = new InputContext(null);
+        _inputByteBuffer = data.duplicate();
+        _inputByteBufferStart = data.position();
+        if (data.hasArray()) {
+            _inputBuffer = data.array();
+            _inputPtr = data.arrayOffset() + data.position();
+            _inputEnd = data.arrayOffset() + data.limit();
+            _currentInputProcessed = -_inputPtr;
+        } else {
+            _inputStream = new ByteBufferInputStream(data.duplicate());
+            _inputBuffer = BufferPool.allocate(INPUT_BUFFER_SIZE);
         }
+        _nonBlocking = false;
+    }
 
-        private int read32() throws IOException, JsonParseException {
-            return (read16()<<16) | read16();
+    /**
+     * Non-blocking parser, which parses input given to
+     * {@link #feedInput}.
+     */
+    public MessagePackParser(IOContext ctxt, ObjectCodec codec, EnumSet<MessagePackFactory.Feature> msgPackFeatures, EnumSet<Feature> parserFeatures, BytesToNameCanonicalizer symbols) {
+        _ioContext = ctxt;
+        _objectCodec = codec;
+        _msgPackFeatures = msgPackFeatures;
+        _parserFeatures = parserFeatures;
+        _symbols = symbols;
+        _inputContext = new InputContext(null);
+        _nonBlocking = true;
+    }
+
+    /**
+     * Whether a non-blocking parser can be given more input, which is
+     * before the first token and after {@link JsonToken#NOT_AVAILABLE}
+     * is returned.
+     */
+    public boolean needMoreInput() {
+        return _nonBlocking && !_endOfInput && (_currentToken == null || _currentToken == JsonToken.NOT_AVAILABLE);
+    }
+
+    /**
+     * Give more input to a non-blocking parser.  The parser refers
+     * to the data until {@link JsonToken#NOT_AVAILABLE} is next
+     * returned, so it must not be modified until then.  Only the
+     * bytes of a value that is incomplete at the end of the data
+     * are copied.
+     */
+    public void feedInput(byte[] data, int offset, int length) throws IOException, JsonParseException {
+        if (!_nonBlocking)
+            throw _constructError("Not a non-blocking parser");
+        if (!needMoreInput())
+            throw _constructError("Unexpected input");
+        int remaining = _inputEnd - _inputPtr;
+        if (remaining == 0) {
+            _currentInputProcessed += _inputEnd - offset;
+            _inputBuffer = data;
+            _inputPtr = offset;
+            _inputEnd = offset + length;
+            return;
         }
+        keepRemainingInput(length);
+        System.arraycopy(data, offset, _inputBuffer, _inputEnd, length);
+        _inputEnd += length;
+    }
 
-        private long read64() throws IOException, JsonParseException {
-            return (((long) read32())<<32) | (long) read32();
+    // Moves any remaining input into _feedBuffer, if it is not
+    // already there, leaving room for at least length more bytes.
+    private void keepRemainingInput(int length) throws JsonParseException {
+        int remaining = _inputEnd - _inputPtr;
+        if (remaining == 0 || (_inputBuffer == _feedBuffer && (long) _inputEnd + length <= _feedBuffer.length))
+            return;
+        long size = (long) remaining + length;
+        if (size > MAX_BUFFER_SIZE)
+            throw _constructError("Input too long: "+size);
+        byte[] buffer = _feedBuffer;
+        if (buffer == null || size > buffer.length)
+            buffer = BufferPool.allocate((int) Math.min(Math.max(size, 2L*remaining), MAX_BUFFER_SIZE));
+        System.arraycopy(_inputBuffer, _inputPtr, buffer, 0, remaining);
+        if (buffer != _feedBuffer) {
+            BufferPool.release(_feedBuffer);
+            _feedBuffer = buffer;
         }
+        _currentInputProcessed += _inputPtr;
+        _inputBuffer = buffer;
+        _inputPtr = 0;
+        _inputEnd = remaining;
     }
 
-    private class ContainerInputContext extends InputContext {
-        final int _size;
-        final InputContext _parent;
-        final JsonToken _endToken;
-        final JavaType _parentObjectContext;
+    /**
+     * Indicate that a non-blocking parser has been given all of its
+     * input.
+     */
+    public void endOfInput() {
+        _endOfInput = true;
+    }
 
-        ContainerInputContext(int size, InputContext parent, JsonToken endToken) {
-            _size = size;
-            _parent = parent;
-            _endToken = endToken;
-            _parentObjectContext = _objectContext;
-            if (_introspectionResults != null && _objectContext != null) {
-                if (parent.inObject() && parent.getCurrentName() != null)
-                    _objectContext = _introspectionResults.getType(_objectContext, parent.getCurrentName());
-                else if (parent.inArray())
-                    _objectContext = _objectContext.getContentType();
-                else if (!parent.inRoot())
-                    _objectContext = null;
+    // Whether the header of the next value is available, along with
+    // its payload if it is not a container.  Whole values are
+    // buffered, so string and binary values longer than
+    // _maxValueLength are rejected as soon as their header is seen.
+    private boolean valueAvailable() throws JsonParseException {
+        int available = _inputEnd - _inputPtr;
+        if (available < 1)
+            return false;
+        byte[] buffer = _inputBuffer;
+        int i = _inputPtr;
+        int tokenByte = buffer[i] & 0xff;
+        if (tokenByte < 0xa0 || tokenByte >= 0xe0)
+            return true;
+        long length;
+        long size = 0;
+        if (tokenByte < 0xc0) {
+            size = tokenByte & 0x1f;
+            length = 1 + size;
+        } else {
+            switch (tokenByte) {
+            case 0xcc:
+            case 0xd0:
+                length = 2;
+                break;
+            case 0xcd:
+            case 0xd1:
+            case 0xdc:
+            case 0xde:
+                length = 3;
+                break;
+            case 0xca:
+            case 0xce:
+            case 0xd2:
+            case 0xdd:
+            case 0xdf:
+                length = 5;
+                break;
+            case 0xcb:
+            case 0xcf:
+            case 0xd3:
+                length = 9;
+                break;
+            case 0xc4:
+            case 0xd9:
+                if (available < 2)
+                    return false;
+                size = buffer[i+1] & 0xff;
+                length = 2 + size;
+                break;
+            case 0xc5:
+            case 0xda:
+                if (available < 3)
+                    return false;
+                size = ((buffer[i+1] & 0xff)<<8) | (buffer[i+2] & 0xff);
+                length = 3 + size;
+                break;
+            case 0xc6:
+            case 0xdb:
+                if (available < 5)
+                    return false;
+                size = ((buffer[i+1]<<24) | ((buffer[i+2] & 0xff)<<16) | ((buffer[i+3] & 0xff)<<8) | (buffer[i+4] & 0xff)) & 0xffffffffL;
+                length = 5 + size;
+                break;
+            default:
+                return true;
             }
         }
+        if (size > _maxValueLength)
+            throw _constructError("Value too long: "+size);
+        return available >= length;
+    }
 
-        @Override
-        JsonToken nextToken() throws IOException, JsonParseException {
-            if (getEntryCount() < _size)
-                return super.nextToken();
-            _nextInputContext = _parent;
-            _objectContext = _parentObjectContext;
-            return _endToken;
+    // Whether the header of the next value is available.
+    private boolean headerAvailable() {
+        int available = _inputEnd - _inputPtr;
+        if (available < 1)
+            return false;
+        switch (_inputBuffer[_inputPtr] & 0xff) {
+        case 0xc4:
+        case 0xcc:
+        case 0xd0:
+        case 0xd9:
+            return available >= 2;
+        case 0xc5:
+        case 0xcd:
+        case 0xd1:
+        case 0xda:
+        case 0xdc:
+        case 0xde:
+            return available >= 3;
+        case 0xc6:
+        case 0xca:
+        case 0xce:
+        case 0xd2:
+        case 0xdb:
+        case 0xdd:
+        case 0xdf:
+            return available >= 5;
+        case 0xcb:
+        case 0xcf:
+        case 0xd3:
+            return available >= 9;
+        default:
+            return true;
         }
+    }
 
-        @Override
-        public JsonStreamContext getParent() {
-            return _parent;
+    private boolean loadMore() throws IOException {
+        if (_inputStream == null || _inputBuffer == null)
+            return false;
+        _currentInputProcessed += _inputEnd;
+        _inputPtr = 0;
+        _inputEnd = 0;
+        for (;;) {
+            int count = _inputStream.read(_inputBuffer, 0, _inputBuffer.length);
+            if (count < 0)
+                return false;
+            if (count > 0) {
+                _inputEnd = count;
+                return true;
+            }
         }
     }
 
-    private class ArrayInputContext extends ContainerInputContext {
-        ArrayInputContext(int size, InputContext parent) {
-            super(size, parent, JsonToken.END_ARRAY);
-            _type = TYPE_ARRAY;
+    // Moves any remaining input to the start of the buffer and reads
+    // until at least length bytes are available.  Length must not be
+    // larger than the buffer.
+    private void ensureAvailable(int length) throws IOException, JsonParseException {
+        if (_inputEnd - _inputPtr >= length)
+            return;
+        if (_inputStream == null || _inputBuffer == null)
+            throw _constructError("Unexpected EOF");
+        int remaining = _inputEnd - _inputPtr;
+        System.arraycopy(_inputBuffer, _inputPtr, _inputBuffer, 0, remaining);
+        _currentInputProcessed += _inputPtr;
+        _inputPtr = 0;
+        _inputEnd = remaining;
+        while (_inputEnd < length) {
+            int count = _inputStream.read(_inputBuffer, _inputEnd, _inputBuffer.length - _inputEnd);
+            if (count < 0)
+                throw _constructError("Unexpected EOF");
+            _inputEnd += count;
         }
     }
 
+    private int read8() throws IOException, JsonParseException {
+        if (_inputPtr >= _inputEnd && !loadMore())
+            throw _constructError("Unexpected EOF");
+        return _inputBuffer[_inputPtr++] & 0xff;
+    }
 
-    private class MapInputContext extends ContainerInputContext {
-        String _currentName;
+    private int read16() throws IOException, JsonParseException {
+        ensureAvailable(2);
+        byte[] buffer = _inputBuffer;
+        int i = _inputPtr;
+        _inputPtr = i + 2;
+        return ((buffer[i] & 0xff)<<8) | (buffer[i+1] & 0xff);
+    }
+
+    private int read32() throws IOException, JsonParseException {
+        ensureAvailable(4);
+        byte[] buffer = _inputBuffer;
+        int i = _inputPtr;
+        _inputPtr = i + 4;
+        return (buffer[i]<<24) | ((buffer[i+1] & 0xff)<<16) | ((buffer[i+2] & 0xff)<<8) | (buffer[i+3] & 0xff);
+    }
+
+    private long read64() throws IOException, JsonParseException {
+        ensureAvailable(8);
+        byte[] buffer = _inputBuffer;
+        int i = _inputPtr;
+        _inputPtr = i + 8;
+        return (((long) ((buffer[i]<<24) | ((buffer[i+1] & 0xff)<<16) | ((buffer[i+2] & 0xff)<<8) | (buffer[i+3] & 0xff)))<<32)
+            | (((buffer[i+4] & 0xff)<<24) | ((buffer[i+5] & 0xff)<<16) | ((buffer[i+6] & 0xff)<<8) | (buffer[i+7] & 0xff)) & 0xffffffffL;
+    }
 
-        MapInputContext(int size, InputContext parent) {
-            super(2*size, parent, JsonToken.END_OBJECT);
-            _type = TYPE_OBJECT;
+    private byte[] readBytes(int length) throws IOException, JsonParseException {
+        if (_inputStream == null && _inputEnd - _inputPtr < length)
+            throw _constructError("Unexpected EOF");
+        byte[] bytes = new byte[length];
+        int count = Math.min(length, _inputEnd - _inputPtr);
+        System.arraycopy(_inputBuffer, _inputPtr, bytes, 0, count);
+        _inputPtr += count;
+        while (count < length) {
+            // Large values are read directly, not through the buffer.
+            int n = _inputStream.read(bytes, count, length - count);
+            if (n < 0)
+                throw _constructError("Unexpected EOF");
+            count += n;
+            _currentInputProcessed += n;
         }
+        return bytes;
+    }
 
-        @Override
-        @SuppressWarnings("fallthrough")
-        JsonToken nextToken() throws IOException, JsonParseException {
-            if (getEntryCount() >= _size)
-                return super.nextToken();
-            if (getEntryCount()%2 == 1)
-                return super.nextToken();
-            super.nextToken();
-            if (_valueType == null)
-                throw _constructError("Unexpected key type");
-            switch (_valueType) {
-            case BYTES:
-                _stringValue = new String(_bytesValue,"UTF-8");
-                _currentName = _stringValue;
-                return JsonToken.FIELD_NAME;
-            case INT:
-                if (_objectContext != null && _introspectionResults != null) {
-                    _stringValue = _introspectionResults.getName(_objectContext, (int) _intValue);
-                    if (_stringValue != null) {
-                        _currentName = _stringValue;
-                        return JsonToken.FIELD_NAME;
-                    }
+    // Skips _skipValues values using only their headers.  Returns
+    // false if a non-blocking parser runs out of input first.
+    private boolean skipValues() throws IOException, JsonParseException {
+        for (;;) {
+            if (_skipBytes > 0) {
+                if (_nonBlocking && !_endOfInput && _skipBytes > _inputEnd - _inputPtr) {
+                    _skipBytes -= _inputEnd - _inputPtr;
+                    _inputPtr = _inputEnd;
+                    return false;
                 }
-                /*FALLTHROUGH*/
+                skipBytes(_skipBytes);
+                _skipBytes = 0;
+            }
+            if (_skipValues <= 0)
+                return true;
+            if (_nonBlocking && !_endOfInput && !headerAvailable()) {
+                keepRemainingInput(0);
+                return false;
+            }
+            _skipValues--;
+            int tokenByte = read8();
+            if (tokenByte < 0x80 || tokenByte >= 0xe0)
+                continue;
+            if ((tokenByte & 0xf0) == 0x80) {
+                _skipValues += 2*(tokenByte & 0xf);
+                continue;
+            }
+            if ((tokenByte & 0xf0) == 0x90) {
+                _skipValues += tokenByte & 0xf;
+                continue;
+            }
+            if ((tokenByte & 0xe0) == 0xa0) {
+                _skipBytes = tokenByte & 0x1f;
+                continue;
+            }
+            switch (tokenByte) {
+            case 0xc0:
+            case 0xc2:
+            case 0xc3:
+                break;
+            case 0xcc:
+            case 0xd0:
+                _skipBytes = 1;
+                break;
+            case 0xcd:
+            case 0xd1:
+                _skipBytes = 2;
+                break;
+            case 0xca:
+            case 0xce:
+            case 0xd2:
+                _skipBytes = 4;
+                break;
+            case 0xcb:
+            case 0xcf:
+            case 0xd3:
+                _skipBytes = 8;
+                break;
+            case 0xc4:
+            case 0xd9:
+                _skipBytes = read8();
+                break;
+            case 0xc5:
+            case 0xda:
+                _skipBytes = read16();
+                break;
+            case 0xc6:
+            case 0xdb:
+                _skipBytes = read32() & 0xffffffffL;
+                break;
+            case 0xdc:
+                _skipValues += read16();
+                break;
+            case 0xdd:
+                _skipValues += read32() & 0xffffffffL;
+                break;
+            case 0xde:
+                _skipValues += 2*read16();
+                break;
+            case 0xdf:
+                _skipValues += 2*(read32() & 0xffffffffL);
+                break;
             default:
-                throw _constructError("Unexpected key type");
+                throw _constructError("Unrecognized byte:"+tokenByte);
             }
         }
+    }
 
-        @Override
-        public String getCurrentName() {
-            return _currentName;
+    private void skipBytes(long length) throws IOException, JsonParseException {
+        while (length > _inputEnd - _inputPtr) {
+            length -= _inputEnd - _inputPtr;
+            _inputPtr = _inputEnd;
+            if (_inputStream != null && length > _inputBuffer.length) {
+                // Large values are skipped in the stream, not read.
+                long n = _inputStream.skip(length);
+                if (n > 0) {
+                    _currentInputProcessed += n;
+                    length -= n;
+                    continue;
+                }
+            }
+            if (!loadMore())
+                throw _constructError("Unexpected EOF");
         }
+        _inputPtr += (int) length;
     }
 
-    private IOContext _ioContext;
-    private ObjectCodec _objectCodec;
-    private EnumSet<MessagePackFactory.Feature> _msgPackFeatures;
-    private EnumSet<Feature> _parserFeatures;
-    private InputStream _inputStream;
+    /**
+     * Set the length of the largest string or binary value that is
+     * read into memory, as a guard against corrupt or hostile length
+     * headers.  Larger values can still be skipped, or streamed with
+     * {@link #readBinaryValue(OutputStream)}, except by non-blocking
+     * parsers, which buffer whole values and so fail as soon as the
+     * header of a longer value is read.
+     */
+    public MessagePackParser setMaxValueLength(int maxValueLength) {
+        _maxValueLength = maxValueLength;
+        return this;
+    }
 
-    private boolean _closed;
-    private InputContext _inputContext;
-    private JavaType _objectContext;
-    private IntrospectionResults _introspectionResults;
-    private JsonToken _currentToken;
-    private JsonToken _lastClearedToken;
-    private long _currentInputCount;
-    private long _currentTokenLocation;
+    public int getMaxValueLength() {
+        return _maxValueLength;
+    }
 
-    public MessagePackParser(IOContext ctxt, ObjectCodec codec, EnumSet<MessagePackFactory.Feature> msgPackFeatures, EnumSet<Feature> parserFeatures, InputStream in) {
-        _ioContext = ctxt;
-        _objectCodec = codec;
-        _msgPackFeatures = msgPackFeatures;
-        _parserFeatures = parserFeatures;
-        _inputStream = in;
-        _inputContext = new InputContext();
+    private void readUnreadValue(InputContext context) throws IOException, JsonParseException {
+        if (context._bytesValue != UNREAD)
+            return;
+        if (context._bytesLength > _maxValueLength)
+            throw _constructError("Value too long: "+context._bytesLength);
+        context._bytesValue = readBytes(context._bytesLength);
+    }
+
+    // Whether the current field name was an integer key, which is
+    // then the long value.
+    boolean hasIntegerKey() {
+        return _currentToken == JsonToken.FIELD_NAME && _inputContext._valueType == ValueType.INT;
     }
 
     void setObjectContext(JavaType objectContext, IntrospectionResults introspectionResults) {
@@ -440,11 +988,40 @@ public class MessagePackParser extends JsonParser {
     public void close() throws IOException {
         if (!_closed) {
             _closed = true;
-            if (_ioContext.isResourceManaged())
+            if (_inputStream != null)
+                BufferPool.release(_inputBuffer);
+            if (_feedBuffer != null)
+                BufferPool.release(_feedBuffer);
+            _inputBuffer = null;
+            _feedBuffer = null;
+            _inputPtr = 0;
+            _inputEnd = 0;
+            if (_textBuffer != null)
+                _textBuffer.releaseBuffers();
+            if (_symbols != null)
+                _symbols.release();
+            if (_inputStream != null && _ioContext.isResourceManaged())
                 _inputStream.close();
         }
     }
 
+    /**
+     * Method that can be called to push back any content that
+     * has been read but not consumed by the parser.
+     *
+     * @return -1 if the underlying content source is not byte based,
+     *    otherwise number of bytes released (0 if there was nothing to release)
+     */
+    @Override
+    public int releaseBuffered(OutputStream out) throws IOException {
+        int count = _inputEnd - _inputPtr;
+        if (count > 0) {
+            out.write(_inputBuffer, _inputPtr, count);
+            _inputPtr = _inputEnd;
+        }
+        return count;
+    }
+
     /**
      * Main iteration method, which will advance stream enough
      * to determine type of the next token, if any. If none
@@ -456,6 +1033,11 @@ public class MessagePackParser extends JsonParser {
      */
     @Override
     public JsonToken nextToken() throws IOException, JsonParseException {
+        _textDecoded = false;
+        if ((_skipValues > 0 || _skipBytes > 0) && !skipValues()) {
+            _currentToken = JsonToken.NOT_AVAILABLE;
+            return _currentToken;
+        }
         _currentToken = _inputContext.nextToken();
         _inputContext = _inputContext.nextInputContext();
         return _currentToken;
@@ -504,35 +1086,20 @@ public class MessagePackParser extends JsonParser {
      * The idea is that after calling this method, application
      * will call {@link #nextToken} to point to the next
      * available token, if any.
+     *<p>
+     * If a non-blocking parser runs out of input first, it points to
+     * {@link JsonToken#NOT_AVAILABLE} instead, and the skipping
+     * continues when {@link #nextToken} is called after more input
+     * is given, which then returns the matching end token.
      */
     @Override
     public JsonParser skipChildren() throws IOException, JsonParseException {
-        if (_inputContext.inRoot() || _inputContext.getEntryCount() > 0)
+        if (_currentToken != JsonToken.START_OBJECT && _currentToken != JsonToken.START_ARRAY)
             return this;
-        int open = 1;
-
-        /* Since proper matching of start/end markers is handled
-         * by nextToken(), we'll just count nesting levels here
-         */
-        while (true) {
-            JsonToken t = nextToken();
-            if (t == null) {
-                throw _constructError("Unexpected EOF");
-            }
-            switch (t) {
-            case START_OBJECT:
-            case START_ARRAY:
-                ++open;
-                break;
-            case END_OBJECT:
-            case END_ARRAY:
-                if (--open == 0) {
-                    return this;
-                }
-                break;
-            default:
-            }
-        }
+        _textDecoded = false;
+        _currentToken = _inputContext.skipChildren();
+        _inputContext = _inputContext.nextInputContext();
+        return this;
     }
 
     /**
@@ -623,7 +1190,7 @@ public class MessagePackParser extends JsonParser {
      */
     @Override
     public JsonLocation getCurrentLocation() {
-        return new JsonLocation(_ioContext.getSourceReference(), _currentInputCount, -1, 0, 0);
+        return new JsonLocation(_ioContext.getSourceReference(), _currentInputProcessed + _inputPtr, -1, 0, 0);
     }
 
     /**
@@ -673,7 +1240,7 @@ public class MessagePackParser extends JsonParser {
      */
     @Override
     public void overrideCurrentName(String name) {
-        ((MapInputContext) _inputContext)._currentName = name;
+        _inputContext._currentName = name;
     }
 
     /**
@@ -707,12 +1274,125 @@ public class MessagePackParser extends JsonParser {
             _inputContext._stringValue = String.valueOf(_inputContext._doubleValue);
             break;
         case BYTES:
-            _inputContext._stringValue = new String(_inputContext._bytesValue, "UTF-8");
+        case BINARY:
+            _inputContext._stringValue = currentText().contentsAsString();
             break;
         }
         return _inputContext._stringValue;
     }
 
+    // The last quad is padded with 0xff, which never occurs in UTF-8.
+    // Names of different lengths can then only pack to the same quads
+    // if the longer one ends with 0xff, so those are not looked up.
+    private String findName(byte[] bytes, int offset, int length) throws IOException, JsonParseException {
+        if (_symbols == null || length > MAX_SYMBOL_LENGTH || (length > 0 && bytes[offset+length-1] == (byte) 0xff))
+            return currentText().contentsAsString();
+        if (length == 0)
+            return "";
+        int qlen = (length + 3) >> 2;
+        if (_quadBuffer == null || _quadBuffer.length < qlen)
+            _quadBuffer = new int[Math.max(qlen, 16)];
+        int[] quads = _quadBuffer;
+        int end = offset + length;
+        int i = offset;
+        int q = 0;
+        for (; i + 4 <= end; i += 4)
+            quads[q++] = (bytes[i]<<24) | ((bytes[i+1] & 0xff)<<16) | ((bytes[i+2] & 0xff)<<8) | (bytes[i+3] & 0xff);
+        if (i < end) {
+            int quad = -1;
+            for (int shift = 24; i < end; shift -= 8)
+                quad = (quad & ~(0xff << shift)) | ((bytes[i++] & 0xff) << shift);
+            quads[q] = quad;
+        }
+        Name name;
+        if (qlen == 1)
+            name = _symbols.findName(quads[0]);
+        else if (qlen == 2)
+            name = _symbols.findName(quads[0], quads[1]);
+        else
+            name = _symbols.findName(quads, qlen);
+        if (name == null)
+            name = _symbols.addName(currentText().contentsAsString(), quads, qlen);
+        return name.getName();
+    }
+
+    // Raw values are only decoded when their text is asked for.
+    private TextBuffer currentText() throws IOException, JsonParseException {
+        if (!_textDecoded) {
+            if (_textBuffer == null)
+                _textBuffer = _ioContext.constructTextBuffer();
+            if (_inputContext._stringValue == null && _inputContext._bytesValue != null) {
+                readUnreadValue(_inputContext);
+                decodeText(_inputContext._bytesValue, _inputContext._bytesOffset, _inputContext._bytesLength);
+            } else {
+                String text = getText();
+                if (text == null)
+                    return null;
+                _textBuffer.resetWithString(text);
+            }
+            _textDecoded = true;
+        }
+        return _textBuffer;
+    }
+
+    // Malformed input is decoded as U+FFFD.
+    private void decodeText(byte[] bytes, int offset, int length) {
+        char[] chars = _textBuffer.emptyAndGetCurrentSegment();
+        int charsPtr = 0;
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (charsPtr >= chars.length) {
+                chars = _textBuffer.finishCurrentSegment();
+                charsPtr = 0;
+            }
+            int b = bytes[i];
+            if (b >= 0) {
+                int limit = Math.min(end, i + chars.length - charsPtr);
+                do {
+                    chars[charsPtr++] = (char) b;
+                } while (++i < limit && (b = bytes[i]) >= 0);
+                continue;
+            }
+            i++;
+            int c;
+            int count;
+            int min;
+            if ((b & 0xe0) == 0xc0) {
+                c = b & 0x1f;
+                count = 1;
+                min = 0x80;
+            } else if ((b & 0xf0) == 0xe0) {
+                c = b & 0x0f;
+                count = 2;
+                min = 0x800;
+            } else if ((b & 0xf8) == 0xf0) {
+                c = b & 0x07;
+                count = 3;
+                min = 0x10000;
+            } else {
+                chars[charsPtr++] = '\ufffd';
+                continue;
+            }
+            for (; count > 0 && i < end && (bytes[i] & 0xc0) == 0x80; count--)
+                c = (c<<6) | (bytes[i++] & 0x3f);
+            if (count > 0 || c < min || c > Character.MAX_CODE_POINT || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)) {
+                chars[charsPtr++] = '\ufffd';
+            } else if (c >= 0x10000) {
+                c -= 0x10000;
+                chars[charsPtr++] = (char) (Character.MIN_HIGH_SURROGATE + (c>>10));
+                if (charsPtr >= chars.length) {
+                    chars = _textBuffer.finishCurrentSegment();
+                    charsPtr = 0;
+                }
+                chars[charsPtr++] = (char) (Character.MIN_LOW_SURROGATE + (c & 0x3ff));
+            } else {
+                chars[charsPtr++] = (char) c;
+            }
+        }
+        _textBuffer.setCurrentLength(charsPtr);
+    }
+
     /**
      * Method similar to {@link #getText}, but that will return
      * underlying (unmodifiable) character array that contains
@@ -740,7 +1420,8 @@ public class MessagePackParser extends JsonParser {
      */
     @Override
     public char[] getTextCharacters() throws IOException, JsonParseException {
-        throw new UnsupportedOperationException();
+        TextBuffer text = currentText();
+        return text == null ? null : text.getTextBuffer();
     }
 
     /**
@@ -753,7 +1434,8 @@ public class MessagePackParser extends JsonParser {
      */
     @Override
     public int getTextLength() throws IOException, JsonParseException {
-        throw new UnsupportedOperationException();
+        TextBuffer text = currentText();
+        return text == null ? 0 : text.size();
     }
 
     /**
@@ -766,7 +1448,8 @@ public class MessagePackParser extends JsonParser {
      */
     @Override
     public int getTextOffset() throws IOException, JsonParseException {
-        throw new UnsupportedOperationException();
+        TextBuffer text = currentText();
+        return text == null ? 0 : text.getTextOffset();
     }
 
     /**
@@ -788,7 +1471,7 @@ public class MessagePackParser extends JsonParser {
      */
     @Override
     public boolean hasTextCharacters() {
-        return false;
+        return _textDecoded && _textBuffer.hasTextAsCharacters();
     }
 
     /**
@@ -1023,7 +1706,9 @@ public class MessagePackParser extends JsonParser {
      */
     @Override
     public Object getEmbeddedObject() throws IOException, JsonParseException {
-        throw new IllegalStateException();
+        if (_currentToken != JsonToken.VALUE_EMBEDDED_OBJECT)
+            return null;
+        return getBinaryValue();
     }
 
     /**
@@ -1050,7 +1735,68 @@ public class MessagePackParser extends JsonParser {
      */
     @Override
     public byte[] getBinaryValue(Base64Variant b64variant) throws IOException, JsonParseException {
-        return _inputContext._bytesValue;
+        InputContext context = _inputContext;
+        readUnreadValue(context);
+        if (context._bytesValue != null && (context._bytesValue == _inputBuffer || context._bytesLength != context._bytesValue.length)) {
+            context._bytesValue = Arrays.copyOfRange(context._bytesValue, context._bytesOffset, context._bytesOffset + context._bytesLength);
+            context._bytesOffset = 0;
+        }
+        return context._bytesValue;
+    }
+
+    /**
+     * Method that can be used as an alternative to
+     * {@link #getBinaryValue(Base64Variant)},
+     * especially when value can be large. The main difference (beyond method
+     * of returning content using {@link OutputStream} instead of as single
+     * contiguous byte array) is that content will NOT remain accessible after
+     * method returns: any content processed will be consumed and is not
+     * buffered in any way.
+     *<p>
+     * Values that are larger than the input buffer are copied to the
+     * output through the buffer, and are never fully read into memory.
+     *
+     * @return Number of bytes that were decoded and written via {@link OutputStream}
+     */
+    @Override
+    public int readBinaryValue(Base64Variant b64variant, OutputStream out) throws IOException, JsonParseException {
+        InputContext context = _inputContext;
+        if (context._bytesValue == null)
+            throw _constructError("Current token ("+_currentToken+") not a string or binary value");
+        int length = context._bytesLength;
+        if (context._bytesValue != UNREAD) {
+            out.write(context._bytesValue, context._bytesOffset, length);
+            return length;
+        }
+        context._bytesValue = NO_BYTES;
+        context._bytesLength = 0;
+        for (int remaining = length; remaining > 0; ) {
+            if (_inputPtr >= _inputEnd && !loadMore())
+                throw _constructError("Unexpected EOF");
+            int count = Math.min(remaining, _inputEnd - _inputPtr);
+            out.write(_inputBuffer, _inputPtr, count);
+            _inputPtr += count;
+            remaining -= count;
+        }
+        return length;
+    }
+
+    /**
+     * Get the current raw value as a ByteBuffer.  For parsers over a
+     * ByteBuffer, this is a slice of that buffer and is not copied.
+     * Otherwise, it wraps a copy of the value.
+     */
+    public ByteBuffer getByteBufferValue() throws IOException, JsonParseException {
+        InputContext context = _inputContext;
+        if (context._bytesValue == null)
+            return null;
+        if (_inputByteBuffer == null)
+            return ByteBuffer.wrap(getBinaryValue());
+        ByteBuffer slice = _inputByteBuffer.duplicate();
+        int position = _inputByteBufferStart + (int) context._bytesPosition;
+        slice.limit(position + context._bytesLength);
+        slice.position(position);
+        return slice.slice();
     }
 
     /**
@@ -1069,4 +1815,38 @@ public class MessagePackParser extends JsonParser {
         String text = getText();
         return text == null ? defaultValue : text;
     }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer _data;
+
+        ByteBufferInputStream(ByteBuffer data) {
+            _data = data;
+        }
+
+        @Override
+        public int read() {
+            return _data.hasRemaining() ? _data.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!_data.hasRemaining())
+                return len == 0 ? 0 : -1;
+            int count = Math.min(len, _data.remaining());
+            _data.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.min(Math.max(n, 0), _data.remaining());
+            _data.position(_data.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return _data.remaining();
+        }
+    }
 }
@@ -0,0 +1,108 @@
+package com.yrek.jackson.dataformat.msgpack;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerationException;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Writer for a sequence of top-level MessagePack values over a
+ * single generator, created with
+ * {@link MessagePackObjectMapper#writeValues(java.io.OutputStream)}.
+ * The generator's buffers are shared by all the values written.
+ * Output is written to the target when the generator's buffer fills,
+ * and also after every <code>flushInterval</code> values if one is
+ * set.
+ *<p>
+ * Values are written with the mapper's current serialization config.
+ * {@link SerializationFeature#CLOSE_CLOSEABLE} is honored for each
+ * value.  {@link SerializationFeature#FLUSH_AFTER_WRITE_VALUE} is
+ * not, since it is enabled by default and would flush every value;
+ * use a <code>flushInterval</code> of 1 for that.
+ */
+public class MessagePackSequenceWriter implements Closeable, Flushable {
+    private final MessagePackObjectMapper _mapper;
+    private final MessagePackGenerator _generator;
+    private int _flushInterval;
+    private int _unflushedCount;
+    private Class<?> _lastClass;
+    private JavaType _lastType;
+
+    MessagePackSequenceWriter(MessagePackObjectMapper mapper, MessagePackGenerator generator) {
+        _mapper = mapper;
+        _generator = generator;
+    }
+
+    /**
+     * Flush the output after every <code>flushInterval</code> values.
+     * Zero, the default, only flushes when the buffer is full or on
+     * {@link #flush} or {@link #close}.
+     */
+    public MessagePackSequenceWriter setFlushInterval(int flushInterval) {
+        _flushInterval = flushInterval;
+        return this;
+    }
+
+    public MessagePackGenerator getGenerator() {
+        return _generator;
+    }
+
+    public MessagePackSequenceWriter write(Object value) throws IOException, JsonGenerationException, JsonMappingException {
+        SerializationConfig config = _mapper.getSerializationConfig();
+        if (value == null) {
+            _generator.writeNull();
+        } else {
+            if (value.getClass() != _lastClass) {
+                _lastClass = value.getClass();
+                _lastType = config.constructType(_lastClass);
+            }
+            _generator.setObjectContext(_lastType, _mapper.getIntrospectionResults(config));
+            if (config.isEnabled(SerializationFeature.CLOSE_CLOSEABLE) && value instanceof Closeable)
+                writeCloseable((Closeable) value);
+            else
+                _mapper.serializeValue(_generator, value);
+        }
+        if (_flushInterval > 0 && ++_unflushedCount >= _flushInterval)
+            flush();
+        return this;
+    }
+
+    // As in ObjectMapper, the value is closed even if writing fails.
+    private void writeCloseable(Closeable value) throws IOException, JsonGenerationException, JsonMappingException {
+        Closeable toClose = value;
+        try {
+            _mapper.serializeValue(_generator, value);
+            toClose = null;
+            value.close();
+        } finally {
+            if (toClose != null) {
+                try {
+                    toClose.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    public MessagePackSequenceWriter writeAll(Iterable<?> values) throws IOException, JsonGenerationException, JsonMappingException {
+        for (Object value : values)
+            write(value);
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        _unflushedCount = 0;
+        _generator.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        _generator.close();
+    }
+}
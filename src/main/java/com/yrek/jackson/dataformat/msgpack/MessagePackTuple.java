@@ -0,0 +1,18 @@
+package com.yrek.jackson.dataformat.msgpack;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Mark a class to serialize and deserialize as an array of its
+ * keyed properties, each at the index given by its key.  Indexes
+ * without a property are nil.  Every property must have a
+ * non-negative key, and there may be at most one unused index per
+ * property, plus 16.
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MessagePackTuple {
+}
@@ -1,6 +1,5 @@
 package com.yrek.jackson.dataformat.protobuf;
 
-import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -22,6 +21,7 @@ import com.fasterxml.jackson.core.io.IOContext;
 import com.fasterxml.jackson.databind.JavaType;
 
 import com.yrek.jackson.dataformat.msgpack.MessagePackVersion;
+import com.yrek.jackson.dataformat.util.BufferPool;
 
 public class ProtobufGenerator extends JsonGenerator {
     private class OutputContext extends JsonStreamContext {
@@ -193,16 +193,50 @@ public class ProtobufGenerator extends JsonGenerator {
         }
     }
 
+    private class BufferOutputStream extends OutputStream {
+        private byte[] buffer = BufferPool.allocate(INITIAL_BUFFER_SIZE);
+        private int length;
+
+        @Override
+        public void write(int b) {
+            if (length >= buffer.length)
+                buffer = BufferPool.reallocate(buffer, length, 2*buffer.length);
+            buffer[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int count) {
+            if (length + count > buffer.length)
+                buffer = BufferPool.reallocate(buffer, length, Math.max(2*buffer.length, length + count));
+            System.arraycopy(b, offset, buffer, length, count);
+            length += count;
+        }
+
+        public int size() {
+            return length;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(buffer, 0, length);
+        }
+
+        public void release() {
+            BufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+
     private class LengthDelimitedOutputContext extends OutputContext {
         LengthDelimitedOutputContext(OutputContext parent, boolean isObject) {
-            super(new ByteArrayOutputStream(), parent, isObject ? TYPE_OBJECT : TYPE_ARRAY);
+            super(new BufferOutputStream(), parent, isObject ? TYPE_OBJECT : TYPE_ARRAY);
         }
 
         @Override
         public OutputContext endContext() throws IOException {
-            ByteArrayOutputStream out = (ByteArrayOutputStream) out();
+            BufferOutputStream out = (BufferOutputStream) out();
             parent.varint(out.size());
             out.writeTo(parent.out());
+            out.release();
             return super.endContext();
         }
     }
@@ -223,6 +257,8 @@ public class ProtobufGenerator extends JsonGenerator {
         }
     }
 
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
     private IOContext ioContext;
     private ObjectCodec objectCodec;
     private OutputStream outputStream;
@@ -1194,6 +1230,9 @@ public class ProtobufGenerator extends JsonGenerator {
     public void close() throws IOException {
         if (!closed) {
             closed = true;
+            for (OutputContext context = outputContext; context != null; context = context.parent)
+                if (context.out() instanceof BufferOutputStream)
+                    ((BufferOutputStream) context.out()).release();
             if (ioContext.isResourceManaged())
                 outputStream.close();
             else
@@ -0,0 +1,85 @@
+package com.yrek.jackson.dataformat.util;
+
+import java.lang.ref.SoftReference;
+
+/**
+ * Per-thread pool of scratch byte arrays, shared by the MessagePack
+ * and Protobuf generators and parsers.  Internal to those formats.
+ * Buffers come in power of two size classes.  Buffers larger than
+ * the largest size class are not pooled.
+ *<p>
+ * Each call uses the pool of the calling thread, since a generator
+ * or parser may be used by more than one thread in turn.  A buffer
+ * allocated on one thread may be released on another.
+ */
+public final class BufferPool {
+    private static final int MIN_SHIFT = 6;
+    private static final int MAX_SHIFT = 18;
+    private static final int BUFFERS_PER_CLASS = 4;
+
+    private static final ThreadLocal<SoftReference<BufferPool>> _bufferPools = new ThreadLocal<SoftReference<BufferPool>>();
+
+    private final byte[][][] _buffers = new byte[MAX_SHIFT - MIN_SHIFT + 1][BUFFERS_PER_CLASS][];
+    private final int[] _counts = new int[MAX_SHIFT - MIN_SHIFT + 1];
+
+    private BufferPool() {
+    }
+
+    private static BufferPool getBufferPool() {
+        SoftReference<BufferPool> ref = _bufferPools.get();
+        BufferPool bufferPool = ref == null ? null : ref.get();
+        if (bufferPool == null) {
+            bufferPool = new BufferPool();
+            _bufferPools.set(new SoftReference<BufferPool>(bufferPool));
+        }
+        return bufferPool;
+    }
+
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    /**
+     * Get a buffer of at least the given size.
+     */
+    public static byte[] allocate(int minSize) {
+        int sizeClass = sizeClass(minSize);
+        if (sizeClass > MAX_SHIFT - MIN_SHIFT)
+            return new byte[minSize];
+        BufferPool bufferPool = getBufferPool();
+        if (bufferPool._counts[sizeClass] > 0) {
+            int count = --bufferPool._counts[sizeClass];
+            byte[] buffer = bufferPool._buffers[sizeClass][count];
+            bufferPool._buffers[sizeClass][count] = null;
+            return buffer;
+        }
+        return new byte[1 << (sizeClass + MIN_SHIFT)];
+    }
+
+    /**
+     * Get a buffer of at least the given size holding the first
+     * length bytes of the given buffer, which is released.
+     */
+    public static byte[] reallocate(byte[] buffer, int length, int minSize) {
+        byte[] newBuffer = allocate(minSize);
+        System.arraycopy(buffer, 0, newBuffer, 0, length);
+        release(buffer);
+        return newBuffer;
+    }
+
+    /**
+     * Return a buffer to the pool.  The buffer must not be used
+     * after it is released.
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null)
+            return;
+        int sizeClass = sizeClass(buffer.length);
+        if (sizeClass > MAX_SHIFT - MIN_SHIFT || buffer.length != 1 << (sizeClass + MIN_SHIFT))
+            return;
+        BufferPool bufferPool = getBufferPool();
+        if (bufferPool._counts[sizeClass] < BUFFERS_PER_CLASS)
+            bufferPool._buffers[sizeClass][bufferPool._counts[sizeClass]++] = buffer;
+    }
+}
@@ -1,16 +1,51 @@
 package com.yrek.jackson.dataformat.msgpack;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import com.fasterxml.jackson.annotation.JsonFilter;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import com.fasterxml.jackson.annotation.JsonView;
+import com.fasterxml.jackson.core.JsonGenerationException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.deser.BeanDeserializerFactory;
+import com.fasterxml.jackson.databind.deser.DefaultDeserializationContext;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 import com.yrek.jackson.dataformat.protobuf.Protobuf;
+import com.yrek.jackson.dataformat.util.BufferPool;
 
 public class MessagePackTest {
     private ObjectMapper jsonMapper = new ObjectMapper();
@@ -49,6 +84,526 @@ public class MessagePackTest {
         Assert.assertArrayEquals(new byte[] { (byte) 0x93, (byte) 0x83, (byte) 0xa7, 0x63, 0x6f, 0x6d, 0x70, 0x61, 0x63, 0x74, (byte) 0xc2, (byte) 0xa6, 0x73, 0x63, 0x68, 0x65, 0x6d, 0x61, 0x2d, (byte) 0xa5, 0x62, 0x79, 0x74, 0x65, 0x73, (byte) 0xa6, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, (byte) 0xc0, (byte) 0x82, (byte) 0xa7, 0x63, 0x6f, 0x6d, 0x70, 0x61, 0x63, 0x74, (byte) 0xc3, (byte) 0xa6, 0x73, 0x63, 0x68, 0x65, 0x6d, 0x61, 0x00 }, msgPackMapper.writeValueAsBytes(data));
     }
 
+    public static class SizedExample {
+        public int a = 1;
+        public List<Integer> list = new ArrayList<Integer>();
+        public int[] ints = new int[] { 7 };
+    }
+
+    @Test
+    public void testSerializeSizedExample() throws Exception {
+        SizedExample data = new SizedExample();
+        Assert.assertEquals("{\"a\":1,\"list\":[],\"ints\":[7]}",jsonMapper.writeValueAsString(data));
+        Assert.assertArrayEquals(new byte[] { (byte) 0x83, (byte) 0xa1, 0x61, 0x01, (byte) 0xa4, 0x6c, 0x69, 0x73, 0x74, (byte) 0x90, (byte) 0xa4, 0x69, 0x6e, 0x74, 0x73, (byte) 0x91, 0x07 }, msgPackMapper.writeValueAsBytes(data));
+        data.list.add(2);
+        data.list.add(3);
+        Assert.assertArrayEquals(new byte[] { (byte) 0x92, (byte) 0x83, (byte) 0xa1, 0x61, 0x01, (byte) 0xa4, 0x6c, 0x69, 0x73, 0x74, (byte) 0x92, 0x02, 0x03, (byte) 0xa4, 0x69, 0x6e, 0x74, 0x73, (byte) 0x91, 0x07, (byte) 0xc0 }, msgPackMapper.writeValueAsBytes(new SizedExample[] { data, null }));
+    }
+
+    public static class UnwrappedExample {
+        public List<Map<String,Integer>> maps = new ArrayList<Map<String,Integer>>();
+    }
+
+    @Test
+    public void testSingleElementUnwrapped() throws Exception {
+        UnwrappedExample data = new UnwrappedExample();
+        data.maps.add(new LinkedHashMap<String,Integer>());
+        data.maps.get(0).put("a", 1);
+        data.maps.get(0).put("b", 2);
+        Assert.assertArrayEquals(new byte[] { (byte) 0x81, (byte) 0xa4, 0x6d, 0x61, 0x70, 0x73, (byte) 0x82, (byte) 0xa1, 0x61, 0x01, (byte) 0xa1, 0x62, 0x02 }, msgPackMapper.writer(SerializationFeature.WRITE_SINGLE_ELEM_ARRAYS_UNWRAPPED).writeValueAsBytes(data));
+    }
+
+    public static class Bag extends ArrayList<String> {
+        private static final long serialVersionUID = 0L;
+    }
+
+    // Writes a collection as an object of counts.
+    public static class BagSerializer extends JsonSerializer<Bag> {
+        @Override
+        public void serialize(Bag value, JsonGenerator jgen, SerializerProvider provider) throws IOException {
+            LinkedHashMap<String,Integer> counts = new LinkedHashMap<String,Integer>();
+            for (String s : value)
+                counts.put(s, counts.containsKey(s) ? counts.get(s) + 1 : 1);
+            jgen.writeStartObject();
+            for (Map.Entry<String,Integer> entry : counts.entrySet())
+                jgen.writeNumberField(entry.getKey(), entry.getValue());
+            jgen.writeEndObject();
+        }
+    }
+
+    @Test
+    public void testCollectionAsObject() throws Exception {
+        SimpleModule module = new SimpleModule();
+        module.addSerializer(Bag.class, new BagSerializer());
+        ObjectMapper mapper = new MessagePackObjectMapper().registerModule(module);
+        Bag bag = new Bag();
+        bag.add("a");
+        bag.add("a");
+        bag.add("b");
+        Assert.assertArrayEquals(new byte[] { (byte) 0x82, (byte) 0xa1, 0x61, 0x02, (byte) 0xa1, 0x62, 0x01 }, mapper.writeValueAsBytes(bag));
+    }
+
+    @Test(expected=JsonGenerationException.class)
+    public void testSizeMismatch() throws Exception {
+        MessagePackGenerator generator = (MessagePackGenerator) new MessagePackFactory().createGenerator(new ByteArrayOutputStream());
+        generator.writeStartArray(2);
+        generator.writeNumber(1);
+        generator.writeEndArray();
+    }
+
+    @Test
+    public void testUnknownSizes() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessagePackGenerator generator = (MessagePackGenerator) new MessagePackFactory().createGenerator(out);
+        generator.writeStartArray();
+        generator.writeStartObject();
+        generator.writeFieldName("a");
+        generator.writeStartArray();
+        for (int i = 0; i < 20; i++)
+            generator.writeNumber(i);
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.writeStartObject();
+        generator.writeEndObject();
+        generator.writeEndArray();
+        generator.close();
+        Assert.assertArrayEquals(new byte[] { (byte) 0x92, (byte) 0x81, (byte) 0xa1, 0x61, (byte) 0xdc, 0x00, 0x14, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, (byte) 0x80 }, out.toByteArray());
+    }
+
+    @Test
+    public void testBufferedOutput() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessagePackGenerator generator = (MessagePackGenerator) new MessagePackFactory().createGenerator(out);
+        generator.writeNumber(0x12345678);
+        generator.writeNumber(-1.0);
+        Assert.assertEquals(0, out.size());
+        generator.flush();
+        Assert.assertArrayEquals(new byte[] { (byte) 0xce, 0x12, 0x34, 0x56, 0x78, (byte) 0xcb, (byte) 0xbf, (byte) 0xf0, 0, 0, 0, 0, 0, 0 }, out.toByteArray());
+        for (int i = 0; i < 10000; i++)
+            generator.writeNumber(1000);
+        generator.close();
+        Assert.assertEquals(14 + 30000, out.size());
+    }
+
+    @Test
+    public void testSerializeStrings() throws Exception {
+        MessagePackObjectMapper mapper = new MessagePackObjectMapper();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 15; i++)
+            sb.append("\u00e9");
+        String[] strings = { "", "abc", sb.toString(), sb.toString() + "\u4e2d\ud83d\ude00\ud800", sb.toString() + sb.toString() + sb.toString(), new String(new char[5000]) };
+        for (String s : strings) {
+            byte[] utf8 = s.getBytes("UTF-8");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (utf8.length < 32) {
+                out.write(0xa0 | utf8.length);
+            } else {
+                out.write(0xda);
+                out.write(utf8.length >> 8);
+                out.write(utf8.length);
+            }
+            out.write(utf8);
+            Assert.assertArrayEquals(out.toByteArray(), mapper.writeValueAsBytes(s));
+            Assert.assertArrayEquals(out.toByteArray(), mapper.writeValueAsBytes(s.toCharArray()));
+        }
+    }
+
+    @Test
+    public void testBinAndStr8() throws Exception {
+        ObjectMapper mapper = new MessagePackObjectMapper(new MessagePackFactory().enable(MessagePackGenerator.Feature.WRITE_BIN_AND_STR8));
+        Example data = new Example();
+        data.bytes = new byte[] { 1, 2, 3 };
+        byte[] bytes = mapper.writeValueAsBytes(data);
+        Assert.assertArrayEquals(new byte[] { (byte) 0x83, (byte) 0xa7, 0x63, 0x6f, 0x6d, 0x70, 0x61, 0x63, 0x74, (byte) 0xc3, (byte) 0xa6, 0x73, 0x63, 0x68, 0x65, 0x6d, 0x61, 0x00, (byte) 0xa5, 0x62, 0x79, 0x74, 0x65, 0x73, (byte) 0xc4, 0x03, 0x01, 0x02, 0x03 }, bytes);
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, msgPackMapper.readValue(bytes, Example.class).bytes);
+
+        String s = "0123456789012345678901234567890123456789";
+        bytes = mapper.writeValueAsBytes(s);
+        Assert.assertEquals(2 + 40, bytes.length);
+        Assert.assertEquals((byte) 0xd9, bytes[0]);
+        Assert.assertEquals(40, bytes[1]);
+        Assert.assertEquals(s, msgPackMapper.readValue(bytes, String.class));
+        Assert.assertEquals((byte) 0xda, msgPackMapper.writeValueAsBytes(s)[0]);
+    }
+
+    @Test
+    public void testBinaryOfUnknownLength() throws Exception {
+        for (int length : new int[] { 0, 100, 65536, 1048576, 1048577, 1500000 }) {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++)
+                data[i] = (byte) (i*31);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            MessagePackGenerator generator = (MessagePackGenerator) new MessagePackFactory().createGenerator(out);
+            Assert.assertEquals(length, generator.writeBinary(new ByteArrayInputStream(data), -1));
+            generator.close();
+            Assert.assertArrayEquals(data, msgPackMapper.readValue(out.toByteArray(), byte[].class));
+        }
+    }
+
+    @Test
+    public void testSequenceWriter() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessagePackSequenceWriter writer = ((MessagePackObjectMapper) msgPackMapper).writeValues(out).setFlushInterval(2);
+        CompactExample data = new CompactExample();
+        data.schema = 13;
+        writer.write(data);
+        Assert.assertEquals(0, out.size());
+        writer.write(null);
+        Assert.assertEquals(6, out.size());
+        writer.write(new Example());
+        writer.close();
+        Assert.assertArrayEquals(new byte[] { (byte) 0x82, 0x0, (byte) 0xc3, 0x01, 0x0d, (byte) 0xc0, (byte) 0x82, (byte) 0xa7, 0x63, 0x6f, 0x6d, 0x70, 0x61, 0x63, 0x74, (byte) 0xc3, (byte) 0xa6, 0x73, 0x63, 0x68, 0x65, 0x6d, 0x61, 0x00 }, out.toByteArray());
+    }
+
+    public static class CloseableExample implements Closeable {
+        public int a = 1;
+        boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void testSequenceWriterCloseable() throws Exception {
+        MessagePackObjectMapper mapper = new MessagePackObjectMapper();
+        mapper.enable(SerializationFeature.CLOSE_CLOSEABLE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessagePackSequenceWriter writer = mapper.writeValues(out);
+        CloseableExample data = new CloseableExample();
+        writer.write(data);
+        Assert.assertTrue(data.closed);
+        Assert.assertEquals(0, out.size());
+        writer.close();
+        Assert.assertArrayEquals(new byte[] { (byte) 0x81, (byte) 0xa1, 0x61, 0x01 }, out.toByteArray());
+    }
+
+    @Test
+    public void testDeserializeNumbers() throws Exception {
+        long[] numbers = { 0, 127, -32, -33, 200, -100, 40000, -30000, 3000000000L, -2000000000, 1L << 40, -(1L << 40) };
+        byte[] bytes = msgPackMapper.writeValueAsBytes(numbers);
+        Assert.assertArrayEquals(numbers, msgPackMapper.readValue(bytes, long[].class));
+        // one byte at a time, so that multi-byte values span refills
+        InputStream in = new ByteArrayInputStream(bytes) {
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        Assert.assertArrayEquals(numbers, msgPackMapper.readValue(in, long[].class));
+    }
+
+    @Test
+    public void testSkipChildren() throws Exception {
+        HashMap<String,Object> nested = new HashMap<String,Object>();
+        nested.put("n", new HashMap<String,Object>());
+        nested.put("list", new ArrayList<Object>());
+        Object[] skipped = { 1, -100, 300, 70000, 5000000000L, 1.5f, 2.5, null, true, new String(new char[10000]), new byte[20000], new byte[3], nested };
+        HashMap<String,Object> data = new HashMap<String,Object>();
+        data.put("skip", skipped);
+        Object[] values = { data, 42 };
+        for (boolean binAndStr8 : new boolean[] { false, true }) {
+            MessagePackFactory factory = new MessagePackFactory().configure(MessagePackGenerator.Feature.WRITE_BIN_AND_STR8, binAndStr8);
+            byte[] bytes = new MessagePackObjectMapper(factory).writeValueAsBytes(values);
+            for (int i = 0; i < 2; i++) {
+                JsonParser parser = i == 0 ? factory.createParser(bytes) : factory.createParser(new ByteArrayInputStream(bytes));
+                Assert.assertEquals(JsonToken.START_ARRAY, parser.nextToken());
+                Assert.assertEquals(JsonToken.START_OBJECT, parser.nextToken());
+                Assert.assertEquals(JsonToken.FIELD_NAME, parser.nextToken());
+                Assert.assertEquals(JsonToken.START_ARRAY, parser.nextToken());
+                parser.skipChildren();
+                Assert.assertEquals(JsonToken.END_ARRAY, parser.getCurrentToken());
+                Assert.assertEquals(JsonToken.END_OBJECT, parser.nextToken());
+                Assert.assertEquals(42, parser.nextIntValue(0));
+                Assert.assertEquals(bytes.length - 1, parser.getTokenLocation().getByteOffset());
+                Assert.assertEquals(JsonToken.END_ARRAY, parser.nextToken());
+                parser.close();
+            }
+        }
+    }
+
+    @Test
+    public void testNonBlockingParser() throws Exception {
+        HashMap<String,Object> data = new HashMap<String,Object>();
+        data.put("numbers", new Object[] { 1, -100, 300, 70000, 5000000000L, 1.5f, 2.5, null, true });
+        data.put("string", "été");
+        data.put("long", new String(new char[10000]));
+        data.put("bytes", new byte[] { 1, 2, 3 });
+        MessagePackFactory factory = new MessagePackFactory();
+        byte[] bytes = new MessagePackObjectMapper(factory).writeValueAsBytes(new Object[] { data, data });
+        List<String> expected = new ArrayList<String>();
+        JsonParser parser = factory.createParser(bytes);
+        while (parser.nextToken() != null)
+            expected.add(parser.getCurrentToken() + ":" + parser.getText());
+        for (int chunk : new int[] { 1, 7, 4096 }) {
+            MessagePackParser nonBlockingParser = factory.createNonBlockingParser();
+            List<String> tokens = new ArrayList<String>();
+            byte[] input = new byte[chunk];
+            int offset = 0;
+            for (;;) {
+                JsonToken token = nonBlockingParser.nextToken();
+                if (token == JsonToken.NOT_AVAILABLE) {
+                    Assert.assertTrue(nonBlockingParser.needMoreInput());
+                    if (offset >= bytes.length) {
+                        nonBlockingParser.endOfInput();
+                    } else {
+                        int length = Math.min(chunk, bytes.length - offset);
+                        System.arraycopy(bytes, offset, input, 0, length);
+                        nonBlockingParser.feedInput(input, 0, length);
+                        offset += length;
+                    }
+                } else if (token == null) {
+                    break;
+                } else {
+                    tokens.add(token + ":" + nonBlockingParser.getText());
+                }
+            }
+            nonBlockingParser.close();
+            Assert.assertEquals(expected, tokens);
+        }
+    }
+
+    @Test
+    public void testNonBlockingSkipChildren() throws Exception {
+        HashMap<String,Object> data = new HashMap<String,Object>();
+        data.put("numbers", new Object[] { 1, 300, 5000000000L, 2.5, null });
+        data.put("long", new String(new char[1000]));
+        data.put("bytes", new byte[] { 1, 2, 3 });
+        MessagePackFactory factory = new MessagePackFactory();
+        byte[] bytes = new MessagePackObjectMapper(factory).writeValueAsBytes(new Object[] { data, 5 });
+        for (int chunk : new int[] { 1, 7, 4096 }) {
+            MessagePackParser parser = factory.createNonBlockingParser();
+            List<JsonToken> tokens = new ArrayList<JsonToken>();
+            byte[] input = new byte[chunk];
+            int offset = 0;
+            for (;;) {
+                JsonToken token = parser.nextToken();
+                if (token == JsonToken.START_OBJECT)
+                    token = parser.skipChildren().getCurrentToken();
+                if (token == JsonToken.NOT_AVAILABLE) {
+                    if (offset >= bytes.length) {
+                        parser.endOfInput();
+                    } else {
+                        int length = Math.min(chunk, bytes.length - offset);
+                        System.arraycopy(bytes, offset, input, 0, length);
+                        parser.feedInput(input, 0, length);
+                        offset += length;
+                    }
+                } else if (token == null) {
+                    break;
+                } else {
+                    tokens.add(token);
+                }
+            }
+            parser.close();
+            Assert.assertEquals(Arrays.asList(JsonToken.START_ARRAY, JsonToken.END_OBJECT, JsonToken.VALUE_NUMBER_INT, JsonToken.END_ARRAY), tokens);
+        }
+    }
+
+    @Test
+    public void testByteBufferParser() throws Exception {
+        byte[] big = new byte[20000];
+        big[19999] = 9;
+        Object[] data = { "abc", big, new byte[] { 1, 2, 3 } };
+        byte[] bytes = msgPackMapper.writeValueAsBytes(data);
+        byte[] array = new byte[bytes.length + 7];
+        System.arraycopy(bytes, 0, array, 5, bytes.length);
+        ByteBuffer direct = ByteBuffer.allocateDirect(array.length);
+        direct.put(array);
+        direct.position(5);
+        ByteBuffer heap = ByteBuffer.wrap(array, 1, array.length - 1).slice();
+        heap.position(4);
+        for (ByteBuffer buffer : new ByteBuffer[] { heap, direct }) {
+            int position = buffer.position();
+            buffer.limit(position + bytes.length);
+            List<?> list = ((MessagePackObjectMapper) msgPackMapper).readValue(buffer, List.class);
+            Assert.assertEquals("abc", list.get(0));
+            Assert.assertEquals(position, buffer.position());
+            MessagePackParser parser = new MessagePackFactory().createParser(buffer);
+            Assert.assertEquals(JsonToken.START_ARRAY, parser.nextToken());
+            Assert.assertEquals(JsonToken.VALUE_STRING, parser.nextToken());
+            Assert.assertEquals(ByteBuffer.wrap("abc".getBytes("UTF-8")), parser.getByteBufferValue());
+            Assert.assertEquals(JsonToken.VALUE_STRING, parser.nextToken());
+            Assert.assertEquals(ByteBuffer.wrap(big), parser.getByteBufferValue());
+            Assert.assertEquals(JsonToken.VALUE_STRING, parser.nextToken());
+            Assert.assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), parser.getByteBufferValue());
+            Assert.assertEquals(JsonToken.END_ARRAY, parser.nextToken());
+            Assert.assertNull(parser.nextToken());
+            parser.close();
+        }
+    }
+
+    @Test
+    public void testBinaryAsEmbeddedObject() throws Exception {
+        MessagePackFactory factory = new MessagePackFactory().enable(MessagePackParser.Feature.BINARY_AS_EMBEDDED_OBJECT);
+        ObjectMapper mapper = new MessagePackObjectMapper(factory);
+        Example data = new Example();
+        data.bytes = new byte[] { 1, 2, 3 };
+        byte[] bytes = mapper.writeValueAsBytes(data);
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, mapper.readValue(bytes, Example.class).bytes);
+        Assert.assertEquals("\u0001\u0002\u0003", ((HashMap<?,?>) mapper.readValue(bytes, HashMap.class)).get("bytes"));
+
+        factory.enable(MessagePackGenerator.Feature.WRITE_BIN_AND_STR8);
+        bytes = mapper.writeValueAsBytes(data);
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) ((HashMap<?,?>) mapper.readValue(bytes, HashMap.class)).get("bytes"));
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, mapper.readTree(bytes).get("bytes").binaryValue());
+        JsonParser parser = factory.createParser(bytes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator generator = factory.createGenerator(out);
+        parser.nextToken();
+        generator.copyCurrentStructure(parser);
+        generator.close();
+        Assert.assertArrayEquals(bytes, out.toByteArray());
+    }
+
+    @Test
+    public void testReadBinaryValue() throws Exception {
+        byte[] big = new byte[100000];
+        for (int i = 0; i < big.length; i++)
+            big[i] = (byte) i;
+        byte[] bytes = msgPackMapper.writeValueAsBytes(new Object[] { big, big, "after" });
+        MessagePackParser parser = (MessagePackParser) new MessagePackFactory().setMaxValueLength(50000).createParser(new ByteArrayInputStream(bytes));
+        Assert.assertEquals(50000, parser.getMaxValueLength());
+        Assert.assertEquals(JsonToken.START_ARRAY, parser.nextToken());
+        Assert.assertEquals(JsonToken.VALUE_STRING, parser.nextToken());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(big.length, parser.readBinaryValue(out));
+        Assert.assertArrayEquals(big, out.toByteArray());
+        Assert.assertEquals(JsonToken.VALUE_STRING, parser.nextToken());
+        try {
+            parser.getBinaryValue();
+            Assert.fail();
+        } catch (JsonParseException e) {
+        }
+        Assert.assertEquals("after", parser.nextTextValue());
+        Assert.assertEquals(JsonToken.END_ARRAY, parser.nextToken());
+        parser.close();
+
+        // a corrupt length is not allocated
+        parser = (MessagePackParser) new MessagePackFactory().setMaxValueLength(50000).createParser(new ByteArrayInputStream(new byte[] { (byte) 0xdb, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x61 }));
+        Assert.assertEquals(JsonToken.VALUE_STRING, parser.nextToken());
+        try {
+            parser.getText();
+            Assert.fail();
+        } catch (JsonParseException e) {
+        }
+        parser.close();
+    }
+
+    @Test
+    public void testNonBlockingMaxValueLength() throws Exception {
+        byte[] bytes = new byte[] { (byte) 0xdb, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x61, 0x62 };
+        MessagePackParser parser = new MessagePackFactory().setMaxValueLength(50000).createNonBlockingParser();
+        int offset = 0;
+        try {
+            while (parser.nextToken() == JsonToken.NOT_AVAILABLE)
+                parser.feedInput(bytes, offset++, 1);
+            Assert.fail();
+        } catch (JsonParseException e) {
+        }
+        // rejected once the header is complete
+        Assert.assertEquals(5, offset);
+        parser.close();
+    }
+
+    @Test
+    public void testFieldNames() throws Exception {
+        String[] names = { "", "a", "a\u0000", "\u0000a", "abcd", "abcde", "abcdefgh", "abcdefghi", "été", "中😀" };
+        List<HashMap<String,Integer>> data = new ArrayList<HashMap<String,Integer>>();
+        for (int i = 0; i < 2; i++) {
+            HashMap<String,Integer> map = new HashMap<String,Integer>();
+            for (int j = 0; j < names.length; j++)
+                map.put(names[j], j);
+            data.add(map);
+        }
+        JsonParser parser = msgPackMapper.getFactory().createParser(msgPackMapper.writeValueAsBytes(data));
+        Assert.assertEquals(JsonToken.START_ARRAY, parser.nextToken());
+        List<String> first = new ArrayList<String>();
+        Assert.assertEquals(JsonToken.START_OBJECT, parser.nextToken());
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            first.add(parser.getCurrentName());
+            Assert.assertEquals(names[parser.nextIntValue(-1)], parser.getCurrentName());
+        }
+        Assert.assertEquals(JsonToken.START_OBJECT, parser.nextToken());
+        for (String name : first) {
+            Assert.assertEquals(JsonToken.FIELD_NAME, parser.nextToken());
+            Assert.assertSame(name, parser.getCurrentName());
+            parser.nextToken();
+        }
+        parser.close();
+        Assert.assertEquals(data, msgPackMapper.readValue(msgPackMapper.writeValueAsBytes(data), new TypeReference<List<HashMap<String,Integer>>>() {}));
+    }
+
+    @Test
+    public void testParsingContext() throws Exception {
+        // [{"a":[1]},{"b":[]}]
+        byte[] bytes = new byte[] { (byte) 0x92, (byte) 0x81, (byte) 0xa1, 0x61, (byte) 0x91, 0x01, (byte) 0x81, (byte) 0xa1, 0x62, (byte) 0x90 };
+        JsonParser parser = new MessagePackFactory().createParser(bytes);
+        Assert.assertEquals(JsonToken.START_ARRAY, parser.nextToken());
+        Assert.assertTrue(parser.getParsingContext().inArray());
+        Assert.assertEquals(JsonToken.START_OBJECT, parser.nextToken());
+        Object firstObject = parser.getParsingContext();
+        Assert.assertEquals(JsonToken.FIELD_NAME, parser.nextToken());
+        Assert.assertEquals("a", parser.getParsingContext().getCurrentName());
+        Assert.assertEquals(JsonToken.START_ARRAY, parser.nextToken());
+        Assert.assertEquals("a", parser.getParsingContext().getParent().getCurrentName());
+        Assert.assertEquals(1, parser.nextIntValue(0));
+        Assert.assertEquals(0, parser.getParsingContext().getCurrentIndex());
+        Assert.assertEquals(JsonToken.END_ARRAY, parser.nextToken());
+        Assert.assertEquals(JsonToken.END_OBJECT, parser.nextToken());
+        Assert.assertTrue(parser.getParsingContext().inArray());
+        Assert.assertEquals(JsonToken.START_OBJECT, parser.nextToken());
+        Assert.assertSame(firstObject, parser.getParsingContext());
+        Assert.assertNull(parser.getParsingContext().getCurrentName());
+        Assert.assertEquals(JsonToken.FIELD_NAME, parser.nextToken());
+        Assert.assertEquals("b", parser.getCurrentName());
+        Assert.assertEquals(JsonToken.START_ARRAY, parser.nextToken());
+        Assert.assertEquals(JsonToken.END_ARRAY, parser.nextToken());
+        Assert.assertEquals(JsonToken.END_OBJECT, parser.nextToken());
+        Assert.assertEquals(JsonToken.END_ARRAY, parser.nextToken());
+        Assert.assertTrue(parser.getParsingContext().inRoot());
+        Assert.assertNull(parser.nextToken());
+        parser.close();
+    }
+
+    @Test
+    public void testTextCharacters() throws Exception {
+        byte[] bytes = new byte[] { (byte) 0x92, (byte) 0xa4, 0x61, (byte) 0xc3, (byte) 0xa9, 0x62, (byte) 0xa2, 0x01, 0x02 };
+        JsonParser parser = new MessagePackFactory().createParser(bytes);
+        Assert.assertEquals(JsonToken.START_ARRAY, parser.nextToken());
+        Assert.assertEquals(JsonToken.VALUE_STRING, parser.nextToken());
+        Assert.assertEquals("aéb", new String(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength()));
+        Assert.assertTrue(parser.hasTextCharacters());
+        Assert.assertEquals("aéb", parser.getText());
+        Assert.assertEquals(JsonToken.VALUE_STRING, parser.nextToken());
+        byte[] binary = parser.getBinaryValue();
+        Assert.assertArrayEquals(new byte[] { 1, 2 }, binary);
+        binary[0] = 9;
+        Assert.assertEquals(0x01, bytes[7]);
+        Assert.assertEquals(JsonToken.END_ARRAY, parser.nextToken());
+        parser.close();
+    }
+
+    @Test
+    public void testBufferPool() throws Exception {
+        byte[] buffer = BufferPool.allocate(1000);
+        Assert.assertEquals(1024, buffer.length);
+        BufferPool.release(buffer);
+        Assert.assertSame(buffer, BufferPool.allocate(513));
+        Assert.assertNotSame(buffer, BufferPool.allocate(1024));
+        final byte[] released = BufferPool.allocate(1000);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                BufferPool.release(released);
+            }
+        };
+        thread.start();
+        thread.join();
+        Assert.assertNotSame(released, BufferPool.allocate(1000));
+    }
+
     @Test
     public void testDeserializeHashMap() throws Exception {
         HashMap<String,Object> map = msgPackMapper.readValue(new byte[] { (byte) 0x82, (byte) 0xa7, 0x63, 0x6f, 0x6d, 0x70, 0x61, 0x63, 0x74, (byte) 0xc2, (byte) 0xa6, 0x73, 0x63, 0x68, 0x65, 0x6d, 0x61, 0x2d }, new TypeReference<HashMap<String,Object>>() {});
@@ -97,6 +652,26 @@ public class MessagePackTest {
         Assert.assertNull(data.bytes);
     }
 
+    @Test
+    public void testDeserializeMixedKeys() throws Exception {
+        CompactExample data = msgPackMapper.readValue(new byte[] { (byte) 0x83, 0x01, 0x07, (byte) 0xa5, 0x62, 0x79, 0x74, 0x65, 0x73, (byte) 0xa1, 0x09, (byte) 0xa7, 0x63, 0x6f, 0x6d, 0x70, 0x61, 0x63, 0x74, (byte) 0xc2 }, CompactExample.class);
+        Assert.assertEquals(false, data.compact);
+        Assert.assertEquals(7, data.schema);
+        Assert.assertArrayEquals(new byte[] { 9 }, data.bytes);
+        HashMap<String,Object> map = new HashMap<String,Object>();
+        map.put("schema", 3);
+        Assert.assertEquals(3, msgPackMapper.convertValue(map, CompactExample.class).schema);
+    }
+
+    @Test
+    public void testKeyTable() throws Exception {
+        DeserializationConfig config = msgPackMapper.getDeserializationConfig();
+        DefaultDeserializationContext ctxt = new DefaultDeserializationContext.Impl(BeanDeserializerFactory.instance.withDeserializerModifier(new MessagePackBeanDeserializerModifier())).createInstance(config, null, null);
+        JsonDeserializer<Object> deserializer = ctxt.findRootValueDeserializer(config.constructType(CompactExample.class));
+        Assert.assertTrue(deserializer instanceof MessagePackBeanDeserializer);
+        Assert.assertTrue(((MessagePackBeanDeserializer) deserializer).usesKeyTable());
+    }
+
     @Test
     public void testSerializeCompactExample() throws Exception {
         CompactExample data = new CompactExample();
@@ -105,6 +680,211 @@ public class MessagePackTest {
         Assert.assertArrayEquals(new byte[] { (byte) 0x82, 0x0, (byte) 0xc3, 0x01, 0x0d }, msgPackMapper.writeValueAsBytes(data));
     }
 
+    @Test
+    public void testReaderAndWriter() throws Exception {
+        CompactExample data = new CompactExample();
+        data.schema = 13;
+        byte[] bytes = new byte[] { (byte) 0x82, 0x0, (byte) 0xc3, 0x01, 0x0d };
+        ObjectWriter writer = msgPackMapper.writer().without(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+        Assert.assertTrue(writer instanceof MessagePackObjectWriter);
+        Assert.assertArrayEquals(bytes, writer.writeValueAsBytes(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msgPackMapper.writerWithType(CompactExample.class).writeValue(out, data);
+        Assert.assertArrayEquals(bytes, out.toByteArray());
+        ObjectReader reader = msgPackMapper.reader(CompactExample.class).with(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        Assert.assertTrue(reader instanceof MessagePackObjectReader);
+        Assert.assertEquals(13, reader.<CompactExample>readValue(bytes).schema);
+        Assert.assertEquals(13, msgPackMapper.reader().withType(CompactExample.class).<CompactExample>readValue(new ByteArrayInputStream(bytes)).schema);
+        CompactExample update = new CompactExample();
+        msgPackMapper.readerForUpdating(update).readValue(bytes);
+        Assert.assertEquals(13, update.schema);
+    }
+
+    @Test
+    public void testSerializeMixedExamples() throws Exception {
+        CompactExample compact = new CompactExample();
+        compact.bytes = new byte[] { 9 };
+        Example example = new Example();
+        Assert.assertArrayEquals(new byte[] { (byte) 0x93, (byte) 0x83, 0x0, (byte) 0xc3, 0x01, 0x00, (byte) 0xa5, 0x62, 0x79, 0x74, 0x65, 0x73, (byte) 0xa1, 0x09, (byte) 0x82, (byte) 0xa7, 0x63, 0x6f, 0x6d, 0x70, 0x61, 0x63, 0x74, (byte) 0xc3, (byte) 0xa6, 0x73, 0x63, 0x68, 0x65, 0x6d, 0x61, 0x00, (byte) 0x83, 0x0, (byte) 0xc3, 0x01, 0x00, (byte) 0xa5, 0x62, 0x79, 0x74, 0x65, 0x73, (byte) 0xa1, 0x09 }, msgPackMapper.writeValueAsBytes(new Object[] { compact, example, compact }));
+    }
+
+    public static class SparseKeyExample {
+        @MessagePack(-1)
+        public int low;
+        @MessagePack(70000)
+        public int high;
+    }
+
+    @Test
+    public void testSparseKeys() throws Exception {
+        SparseKeyExample data = new SparseKeyExample();
+        data.low = 1;
+        data.high = 2;
+        byte[] bytes = new byte[] { (byte) 0x82, (byte) 0xff, 0x01, (byte) 0xce, 0x00, 0x01, 0x11, 0x70, 0x02 };
+        Assert.assertArrayEquals(bytes, msgPackMapper.writeValueAsBytes(data));
+        data = msgPackMapper.readValue(bytes, SparseKeyExample.class);
+        Assert.assertEquals(1, data.low);
+        Assert.assertEquals(2, data.high);
+        try {
+            msgPackMapper.readValue(new byte[] { (byte) 0x81, 0x00, 0x01 }, SparseKeyExample.class);
+            Assert.fail();
+        } catch (JsonParseException e) {
+        }
+    }
+
+    @JsonPropertyOrder({ "a", "b", "c", "d" })
+    public static class WideKeyExample {
+        @MessagePack(200)
+        public int a;
+        @MessagePack(1000)
+        public int b;
+        @MessagePack(-100)
+        public int c;
+        @MessagePack(-1000)
+        public int d;
+    }
+
+    @Test
+    public void testWideKeys() throws Exception {
+        byte[] bytes = new byte[] { (byte) 0x84, (byte) 0xcc, (byte) 0xc8, 0x01, (byte) 0xcd, 0x03, (byte) 0xe8, 0x02, (byte) 0xd0, (byte) 0x9c, 0x03, (byte) 0xd1, (byte) 0xfc, 0x18, 0x04 };
+        WideKeyExample data = new WideKeyExample();
+        data.a = 1;
+        data.b = 2;
+        data.c = 3;
+        data.d = 4;
+        Assert.assertArrayEquals(bytes, msgPackMapper.writeValueAsBytes(data));
+        data = msgPackMapper.readValue(bytes, WideKeyExample.class);
+        Assert.assertEquals(4, data.d);
+    }
+
+    @MessagePackTuple
+    public static class TupleExample {
+        @MessagePack(0)
+        public int id;
+        @MessagePack(2)
+        public CompactExample example;
+        @MessagePack(3)
+        public byte[] bytes;
+    }
+
+    @Test
+    public void testTuple() throws Exception {
+        TupleExample data = new TupleExample();
+        data.id = 5;
+        data.example = new CompactExample();
+        data.bytes = new byte[] { 1, 2 };
+        byte[] bytes = new byte[] { (byte) 0x92, (byte) 0x94, 0x05, (byte) 0xc0, (byte) 0x82, 0x00, (byte) 0xc3, 0x01, 0x00, (byte) 0xa2, 0x01, 0x02, (byte) 0xc0 };
+        Assert.assertArrayEquals(bytes, msgPackMapper.writeValueAsBytes(new TupleExample[] { data, null }));
+        TupleExample[] result = msgPackMapper.readValue(bytes, TupleExample[].class);
+        Assert.assertEquals(5, result[0].id);
+        Assert.assertEquals(true, result[0].example.compact);
+        Assert.assertArrayEquals(new byte[] { 1, 2 }, result[0].bytes);
+        Assert.assertNull(result[1]);
+        data = msgPackMapper.readValue(new byte[] { (byte) 0x95, 0x07, 0x01, (byte) 0xc0, (byte) 0xc0, (byte) 0x81, 0x00, 0x00 }, TupleExample.class);
+        Assert.assertEquals(7, data.id);
+        Assert.assertNull(data.example);
+        Assert.assertNull(data.bytes);
+    }
+
+    @MessagePackTuple
+    public static class UnkeyedTupleExample {
+        @MessagePack(0)
+        public int id;
+        public int other;
+    }
+
+    @MessagePackTuple
+    public static class SparseTupleExample {
+        @MessagePack(0)
+        public int id;
+        @MessagePack(100000)
+        public int other;
+    }
+
+    @Test
+    public void testInvalidTuples() throws Exception {
+        for (Class<?> cls : new Class<?>[] { UnkeyedTupleExample.class, SparseTupleExample.class }) {
+            try {
+                msgPackMapper.writeValueAsBytes(cls.newInstance());
+                Assert.fail();
+            } catch (JsonMappingException e) {
+            }
+            try {
+                msgPackMapper.readValue(new byte[] { (byte) 0x91, 0x01 }, cls);
+                Assert.fail();
+            } catch (JsonMappingException e) {
+            }
+        }
+    }
+
+    public static class TupleView {
+    }
+
+    public static class OtherView {
+    }
+
+    @MessagePackTuple
+    @JsonTypeInfo(use=JsonTypeInfo.Id.NAME)
+    @JsonTypeName("t")
+    public static class TypedTupleExample {
+        @MessagePack(0)
+        public int id;
+        @MessagePack(2)
+        @JsonView(TupleView.class)
+        public String name;
+    }
+
+    @Test
+    public void testTypedTuple() throws Exception {
+        TypedTupleExample data = new TypedTupleExample();
+        data.id = 5;
+        data.name = "x";
+        byte[] bytes = new byte[] { (byte) 0x92, (byte) 0xa1, 0x74, (byte) 0x93, 0x05, (byte) 0xc0, (byte) 0xa1, 0x78 };
+        Assert.assertArrayEquals(bytes, msgPackMapper.writeValueAsBytes(data));
+        data = msgPackMapper.readValue(bytes, TypedTupleExample.class);
+        Assert.assertEquals(5, data.id);
+        Assert.assertEquals("x", data.name);
+        Assert.assertArrayEquals(new byte[] { (byte) 0x92, (byte) 0xa1, 0x74, (byte) 0x93, 0x05, (byte) 0xc0, (byte) 0xc0 }, msgPackMapper.writerWithView(OtherView.class).writeValueAsBytes(data));
+        Assert.assertArrayEquals(bytes, msgPackMapper.writerWithView(TupleView.class).writeValueAsBytes(data));
+        Assert.assertNull(msgPackMapper.reader(TypedTupleExample.class).withView(OtherView.class).<TypedTupleExample>readValue(bytes).name);
+    }
+
+    @MessagePackTuple
+    @JsonFilter("tuple")
+    public static class FilteredTupleExample {
+        @MessagePack(0)
+        public int id;
+        @MessagePack(1)
+        public String name;
+    }
+
+    @Test
+    public void testFilteredTuple() throws Exception {
+        FilteredTupleExample data = new FilteredTupleExample();
+        data.id = 5;
+        data.name = "x";
+        SimpleFilterProvider filters = new SimpleFilterProvider().addFilter("tuple", SimpleBeanPropertyFilter.serializeAllExcept("id"));
+        Assert.assertArrayEquals(new byte[] { (byte) 0x92, (byte) 0xc0, (byte) 0xa1, 0x78 }, msgPackMapper.writer(filters).writeValueAsBytes(data));
+    }
+
+    public static abstract class CompactMixIn {
+        @MessagePack(0)
+        public boolean compact;
+    }
+
+    @Test
+    public void testMixInChange() throws Exception {
+        MessagePackObjectMapper mapper = new MessagePackObjectMapper();
+        Example example = new Example();
+        Assert.assertArrayEquals(new byte[] { (byte) 0x82, (byte) 0xa7, 0x63, 0x6f, 0x6d, 0x70, 0x61, 0x63, 0x74, (byte) 0xc3, (byte) 0xa6, 0x73, 0x63, 0x68, 0x65, 0x6d, 0x61, 0x00 }, mapper.writeValueAsBytes(example));
+        IntrospectionResults results = mapper.getIntrospectionResults(mapper.getSerializationConfig());
+        Assert.assertSame(results, mapper.getIntrospectionResults(mapper.getSerializationConfig()));
+        mapper.addMixInAnnotations(Example.class, CompactMixIn.class);
+        Assert.assertNotSame(results, mapper.getIntrospectionResults(mapper.getSerializationConfig()));
+        Assert.assertArrayEquals(new byte[] { (byte) 0x82, 0x00, (byte) 0xc3, (byte) 0xa6, 0x73, 0x63, 0x68, 0x65, 0x6d, 0x61, 0x00 }, mapper.writeValueAsBytes(example));
+        Assert.assertEquals(false, mapper.readValue(new byte[] { (byte) 0x81, 0x00, (byte) 0xc2 }, Example.class).compact);
+    }
+
     @JsonSerialize(include=JsonSerialize.Inclusion.NON_NULL)
     public static class ContainExample {
         public String name;
@@ -206,6 +986,37 @@ public class MessagePackTest {
         Assert.assertEquals(CompactEnumExample.tres, data);
     }
 
+    public enum SparseEnumExample {
+        @MessagePack(-5)
+        low,
+        @MessagePack(100000)
+        high,
+        unkeyed,
+    }
+
+    public static class EnumFieldsExample {
+        public List<CompactEnumExample> list;
+        public HashMap<String,SparseEnumExample> map;
+    }
+
+    @Test
+    public void testEnumFields() throws Exception {
+        EnumFieldsExample data = new EnumFieldsExample();
+        data.list = new ArrayList<CompactEnumExample>();
+        data.list.add(CompactEnumExample.dos);
+        data.list.add(CompactEnumExample.uno);
+        data.map = new HashMap<String,SparseEnumExample>();
+        data.map.put("h", SparseEnumExample.high);
+        byte[] bytes = msgPackMapper.writeValueAsBytes(data);
+        Assert.assertArrayEquals(new byte[] { (byte) 0x82, (byte) 0xa4, 0x6c, 0x69, 0x73, 0x74, (byte) 0x92, 0x02, 0x01, (byte) 0xa3, 0x6d, 0x61, 0x70, (byte) 0x81, (byte) 0xa1, 0x68, (byte) 0xce, 0x00, 0x01, (byte) 0x86, (byte) 0xa0 }, bytes);
+        data.map.put("l", SparseEnumExample.low);
+        data.map.put("u", SparseEnumExample.unkeyed);
+        EnumFieldsExample result = msgPackMapper.readValue(msgPackMapper.writeValueAsBytes(data), EnumFieldsExample.class);
+        Assert.assertEquals(data.list, result.list);
+        Assert.assertEquals(data.map, result.map);
+        Assert.assertArrayEquals(new SparseEnumExample[] { SparseEnumExample.low, SparseEnumExample.unkeyed }, msgPackMapper.readValue(new byte[] { (byte) 0x92, (byte) 0xfb, (byte) 0xa7, 0x75, 0x6e, 0x6b, 0x65, 0x79, 0x65, 0x64 }, SparseEnumExample[].class));
+    }
+
     @JsonSerialize(include=JsonSerialize.Inclusion.NON_NULL)
     public static class ProtobufExample {
         @Protobuf(1)